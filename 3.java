@@ -1,7 +1,10 @@
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Scanner;
 
 public final class Main {
@@ -57,6 +60,17 @@ public final class Main {
             return mainInstance.readCommandsNumber();
         }
 
+        /**
+         * Parses commands limit of streaming mode
+         * @param limit unsigned 64-bit number to parse
+         * @throws NumberFormatException if limit is not a positive unsigned 64-bit number
+         * @return parsed limit (compared as unsigned)
+         */
+
+        private long parseCommandsLimit(final String limit) throws NumberFormatException {
+            return mainInstance.parseCommandsLimit(limit);
+        }
+
         /**
          * Prints error that stops execution of program
          * @param err error itself
@@ -72,7 +86,16 @@ public final class Main {
          */
 
         private void reportWarning(final String warning) {
-            System.out.println(warning);
+            writer.writeLine(warning);
+        }
+
+        /**
+         * Prints pre-encoded warning of a command to console
+         * @param status status of failed command
+         */
+
+        private void reportWarning(final CalculationStatus status) {
+            writer.writeWarning(status);
         }
 
         /**
@@ -88,25 +111,61 @@ public final class Main {
         private OperationType parseOperation(final String operation) throws IllegalArgumentException {
             return mainInstance.parseOperation(operation);
         }
+
+        /**
+         * Parses operation token of the current command
+         * @param command tokenized command
+         * @return parsed {@link OperationType} or {@link OperationType#INCORRECT}
+         */
+
+        private OperationType parseOperation(final CommandReader command) {
+            return mainInstance.parseOperation(command);
+        }
     }
 
     private static final String INTEGER = "INTEGER";
     private static final String DOUBLE = "DOUBLE";
     private static final String STRING = "STRING";
 
+    /** Program argument that enables {@link Main#stream(long)} mode */
+    private static final String STREAM = "stream";
+
+    /**
+     * Commands limit of {@link Main#stream(long)} mode
+     * that is never reached: maximum unsigned 64-bit number
+     */
+    private static final long UNLIMITED = -1L;
+
     /**
      * @deprecated Provides slow runtime and weak error handling.
      * Also, forces client to use default {@link java.nio.charset.Charset}.
      * Moreover, its imperative design limits any optimizations.
-     * Use {@link BufferedReader} instead
+     * Use {@link CommandReader} instead
      */
 
     @Deprecated
     private static Scanner scanner = new Scanner(System.in);
 
-    private static final BufferedReader reader = new BufferedReader(
-            new InputStreamReader(System.in, StandardCharsets.UTF_8)
-    );
+    private static final CommandReader reader = new CommandReader(System.in);
+
+    /** Buffered output of all results and warnings */
+    private static final ResultWriter writer = new ResultWriter(System.out, outputCharset());
+
+    /**
+     * Gets charset that {@link System#out} encodes text with,
+     * so that buffered output stays the same
+     * @return charset of standard output or default charset
+     */
+
+    private static Charset outputCharset() {
+        final String encoding = System.getProperty("stdout.encoding", System.getProperty("sun.stdout.encoding"));
+
+        try {
+            return encoding == null ? Charset.defaultCharset() : Charset.forName(encoding);
+        } catch (final IllegalArgumentException ignore) {
+            return Charset.defaultCharset();
+        }
+    }
 
     /**
      * Reads and parses {@link CalculatorType}
@@ -141,13 +200,32 @@ public final class Main {
         }
     }
 
+    /**
+     * Parses commands limit of streaming mode.
+     * Unlike {@link Main#readCommandsNumber()}, limit is not bounded by 50
+     * @param limit unsigned 64-bit number to parse
+     * @throws NumberFormatException if limit is not a positive unsigned 64-bit number
+     * @return parsed limit (compared as unsigned)
+     * @see Console#parseCommandsLimit(String)
+     */
+
+    private long parseCommandsLimit(final String limit) throws NumberFormatException {
+        try {
+            final long commands = Long.parseUnsignedLong(limit);
+            if (commands != 0) return commands;
+            throw new NumberFormatException();
+        } catch (final NumberFormatException ignore) {
+            throw new NumberFormatException("Amount of commands is Not a Number");
+        }
+    }
+
     /**
      * Prints error that stops execution of program
      * @param err error itself
      * @see Console#reportFatalError(String) 
      */
     
-    private void reportFatalError(final String err) { System.out.println(err); }
+    private void reportFatalError(final String err) { writer.writeLine(err); }
 
     /**
      * Parses operation or throws error if parsing wasn't successful
@@ -183,82 +261,875 @@ public final class Main {
         return parseOperation(operation.charAt(0));
     }
 
+    /**
+     * Parses operation token of the current command
+     * without creating a string for it. Multibyte characters
+     * are never '+', or '-', or '*', or '/', so it is enough
+     * to look at single-byte tokens only
+     * @param command tokenized command
+     * @return parsed {@link OperationType} or {@link OperationType#INCORRECT}
+     * if operation doesn't match '+', or '-', or '*', or '/'
+     * @see Console#parseOperation(CommandReader)
+     */
+
+    private OperationType parseOperation(final CommandReader command) {
+        if (command.tokenEnd(CommandReader.OPERATION) - command.tokenStart(CommandReader.OPERATION) != 1) {
+            // Multibyte UTF-8 character is still a wrong operation
+            return OperationType.INCORRECT;
+        }
+
+        return parseOperation((char) (command.buffer()[command.tokenStart(CommandReader.OPERATION)] & 0xFF));
+    }
+
+    /**
+     * Parses and executes command that was read by {@link Main#reader},
+     * then prints either its result or warning.
+     * Warnings are returned as {@link CalculationStatus}, not thrown
+     */
+
+    private static void executeCommand() {
+        try {
+
+            // Splitting command in place and executing it.
+            // Result is written only if command succeeds
+
+            final CalculationStatus status = reader.tokenize() ?
+                    Calculator.getInstance().calculate(
+                            Console.getInstance().parseOperation(reader),
+                            reader,
+                            writer
+                    ) : CalculationStatus.WRONG_ARGUMENT_TYPE;
+
+            // Finishing result or reporting warning and continuing with other commands
+
+            if (status == CalculationStatus.SUCCESS) writer.writeLine();
+            else Console.getInstance().reportWarning(status);
+        } catch (final Exception warning) {
+            // Only unexpected errors (e.g. too long repeated string) are thrown
+            Console.getInstance().reportWarning(warning.getMessage());
+        }
+    }
+
+    /**
+     * Streaming mode: executes commands until EOF
+     * or until {@code limit} commands are executed.
+     * Only the current command is kept in memory,
+     * so amount of commands is not bounded by 50.
+     * Throughput is reported to {@link System#err}
+     * @param limit maximum amount of commands (compared as unsigned)
+     * @throws IOException If an I/O error occurs
+     */
+
+    private static void stream(final long limit) throws IOException {
+        final long start = System.nanoTime();
+        long commands = 0;
+
+        for (; Long.compareUnsigned(commands, limit) < 0 && reader.nextLine(); ++commands)
+            executeCommand();
+
+        writer.flush();
+        final long nanos = System.nanoTime() - start;
+        System.err.println("Commands: " + Long.toUnsignedString(commands));
+        System.err.printf("Throughput: %.1f commands/s\n", nanos == 0 ? 0.0 : commands * 1e9 / nanos);
+    }
+
     public static void main(final String[] args) throws IOException {
         try {
             // Initializing calculator or throwing error
             Calculator.init(Console.getInstance().readCalculator());
 
-            // Parsing command or throwing error
-            int commands = Console.getInstance().readCommandsNumber();
+            // Streaming mode: commands are read until EOF or optional limit
+
+            if (args.length > 0 && args[0].equals(STREAM)) {
+                stream(args.length > 1 ? Console.getInstance().parseCommandsLimit(args[1]) : UNLIMITED);
+                return;
+            }
+
+            // Parsing command or throwing error
+            int commands = Console.getInstance().readCommandsNumber();
+
+            while (commands-- > 0 && reader.nextLine())
+                executeCommand();
+        } catch (final Exception fatalError) {
+            // Reporting fatal error and finishing execution
+            Console.getInstance().reportFatalError(fatalError.getMessage());
+        } finally {
+            // Flushing output and closing all readers after execution
+            writer.flush();
+            reader.close();
+            scanner.close();
+        }
+    }
+}
+
+enum CalculatorType { INTEGER, DOUBLE, STRING, INCORRECT }
+
+enum OperationType { ADDITION, SUBTRACTION, MULTIPLICATION, DIVISION, INCORRECT }
+
+/**
+ * Outcome of a command that is returned instead of thrown.
+ * Every warning keeps the message that was printed before
+ */
+
+enum CalculationStatus {
+    SUCCESS(""),
+    WRONG_ARGUMENT_TYPE("Wrong argument type"),
+    WRONG_OPERATION_TYPE("Wrong operation type"),
+    DIVISION_BY_ZERO("Division by zero"),
+    UNSUPPORTED_OPERATION("Unsupported operation for strings"),
+    TIMES_MUST_BE_NATURAL("Times must be natural");
+
+    /** Warning to print */
+    final String message;
+
+    CalculationStatus(final String message) { this.message = message; }
+}
+
+/**
+ * Operation struct with two args and type of operation.
+ * While args allowed to be invalid,
+ * {@link Operation#type} should always be correct
+ */
+
+final class Operation {
+    final String arg1;
+    final String arg2;
+    final OperationType type;
+
+    /**
+     * @param arg1 first argument of operation
+     * @param arg2 second argument of operation
+     * @param type correct {@link OperationType}
+     * @throws IllegalArgumentException if type is {@link OperationType#INCORRECT}
+     */
+
+    Operation(
+            final String arg1,
+            final String arg2,
+            final OperationType type
+    ) throws IllegalArgumentException {
+        if (type == OperationType.INCORRECT)
+            throw new IllegalArgumentException("Wrong operation type");
+
+        this.arg1 = arg1;
+        this.arg2 = arg2;
+        this.type = type;
+    }
+}
+
+/**
+ * Reads input line by line into a reusable byte buffer
+ * and splits commands in place, so that executing
+ * a command doesn't allocate any strings or arrays.
+ * Lines are terminated with '\n', '\r' or "\r\n",
+ * as in {@link java.io.BufferedReader#readLine()}
+ */
+
+final class CommandReader {
+
+    /** Index of operation's token */
+    static final int OPERATION = 0;
+
+    /** Index of the first argument's token */
+    static final int FIRST_ARGUMENT = 1;
+
+    /** Index of the second argument's token */
+    static final int SECOND_ARGUMENT = 2;
+
+    private static final int INITIAL_CAPACITY = 1 << 16;
+
+    private final InputStream input;
+
+    /** Grows only if a single line doesn't fit into it */
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+
+    /** Start of unread bytes */
+    private int position;
+
+    /** End of read bytes */
+    private int limit;
+
+    private boolean isEndOfInput;
+
+    /** Whether previous line was terminated with '\r' that may be followed by '\n' */
+    private boolean shouldSkipLineFeed;
+
+    private int lineStart;
+    private int lineEnd;
+
+    /** Bounds of three tokens of the current line */
+    private final int[] tokenStarts = new int[3];
+    private final int[] tokenEnds = new int[3];
+
+    /** @param input stream to read from */
+
+    CommandReader(final InputStream input) { this.input = input; }
+
+    /**
+     * Reads next line into buffer
+     * @return false if there are no lines left
+     * @throws IOException If an I/O error occurs
+     */
+
+    boolean nextLine() throws IOException {
+        if (shouldSkipLineFeed) {
+            shouldSkipLineFeed = false;
+            if (position == limit) fill();
+            if (position < limit && buffer[position] == '\n') ++position;
+        }
+
+        int scan = position;
+
+        for (;;) {
+            for (; scan < limit; ++scan) {
+                final byte b = buffer[scan];
+                if (b != '\n' && b != '\r') continue;
+
+                lineStart = position;
+                lineEnd = scan;
+                position = scan + 1;
+
+                if (b == '\r') {
+                    if (position < limit) {
+                        if (buffer[position] == '\n') ++position;
+                    } else {
+                        shouldSkipLineFeed = true;
+                    }
+                }
+
+                return true;
+            }
+
+            if (isEndOfInput) {
+                if (position == limit) return false;
+                lineStart = position;
+                lineEnd = limit;
+                position = limit;
+                return true;
+            }
+
+            scan -= position;
+            fill();
+            scan += position;
+        }
+    }
+
+    /**
+     * Reads next line as a string.
+     * Only used for the header of input
+     * @return read line or null if there are no lines left
+     * @throws IOException If an I/O error occurs
+     */
+
+    String readLine() throws IOException {
+        if (!nextLine()) return null;
+        return new String(buffer, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Splits the current line into three tokens, as {@code line.split(" ")} would do:
+     * trailing spaces are ignored and tokens are separated by exactly one space,
+     * so that tokens may be empty
+     * @return true if line consists of exactly three tokens
+     */
+
+    boolean tokenize() {
+        int end = lineEnd;
+        while (end > lineStart && buffer[end - 1] == ' ') --end;
+        if (end == lineStart) return false;
+
+        int token = 0;
+        tokenStarts[0] = lineStart;
+
+        for (int i = lineStart; i < end; ++i) {
+            if (buffer[i] != ' ') continue;
+            if (token == SECOND_ARGUMENT) return false;
+            tokenEnds[token++] = i;
+            tokenStarts[token] = i + 1;
+        }
+
+        if (token != SECOND_ARGUMENT) return false;
+        tokenEnds[SECOND_ARGUMENT] = end;
+        return true;
+    }
+
+    /** @return buffer with the current line */
+
+    byte[] buffer() { return buffer; }
+
+    /**
+     * @param token index of token
+     * @return start of token in {@link CommandReader#buffer()}
+     */
+
+    int tokenStart(final int token) { return tokenStarts[token]; }
+
+    /**
+     * @param token index of token
+     * @return end of token (exclusive) in {@link CommandReader#buffer()}
+     */
+
+    int tokenEnd(final int token) { return tokenEnds[token]; }
+
+    /**
+     * Decodes token as a string
+     * @param token index of token
+     * @return token itself
+     */
+
+    String token(final int token) {
+        return new String(buffer, tokenStarts[token], tokenEnds[token] - tokenStarts[token], StandardCharsets.UTF_8);
+    }
+
+    /** Closes underlying stream */
+
+    void close() throws IOException { input.close(); }
+
+    /**
+     * Moves unread bytes to the start of buffer
+     * (or grows it if it is full) and reads more bytes
+     * @throws IOException If an I/O error occurs
+     */
+
+    private void fill() throws IOException {
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        } else if (limit == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+
+        final int read = input.read(buffer, limit, buffer.length - limit);
+        if (read == -1) isEndOfInput = true;
+        else limit += read;
+    }
+}
+
+/**
+ * Writes results and warnings into a reusable byte buffer
+ * that is flushed in large chunks: when it is full
+ * or on {@link ResultWriter#flush()}. Written bytes are the same
+ * as of {@link PrintStream#println(String)} with the given charset.
+ * Numbers are written without creating strings,
+ * warnings are encoded once
+ */
+
+final class ResultWriter {
+    private static final int CAPACITY = 1 << 16;
+
+    /** Max length of int with sign */
+    private static final int MAX_INT_LENGTH = 11;
+
+    private final PrintStream output;
+    private final Charset charset;
+
+    /** Whether ASCII characters are encoded as single bytes of the same value */
+    private final boolean isAsciiCompatible;
+
+    private final byte[] lineSeparator;
+
+    /** Warnings with line separator, indexed by {@link CalculationStatus#ordinal()} */
+    private final byte[][] warnings;
+
+    private final byte[] buffer = new byte[CAPACITY];
+    private int size;
+
+    /** Reusable builder to format doubles that {@link DoubleFormatter} can't format */
+    private final StringBuilder decimal = new StringBuilder();
+
+    private final DoubleFormatter formatter = new DoubleFormatter();
+
+    /**
+     * @param output stream to flush bytes to
+     * @param charset charset to encode text with
+     */
+
+    ResultWriter(final PrintStream output, final Charset charset) {
+        this.output = output;
+        this.charset = charset;
+
+        final StringBuilder ascii = new StringBuilder();
+        for (char c = 0; c < 0x80; ++c) ascii.append(c);
+
+        isAsciiCompatible = Arrays.equals(
+                ascii.toString().getBytes(charset),
+                ascii.toString().getBytes(StandardCharsets.US_ASCII)
+        );
+
+        lineSeparator = System.lineSeparator().getBytes(charset);
+
+        final CalculationStatus[] statuses = CalculationStatus.values();
+        warnings = new byte[statuses.length][];
+
+        for (final CalculationStatus status : statuses)
+            warnings[status.ordinal()] = (status.message + System.lineSeparator()).getBytes(charset);
+    }
+
+    /**
+     * Writes integer's digits directly into buffer
+     * @param value integer to write
+     * @return this writer
+     */
+
+    ResultWriter write(final int value) {
+        if (!isAsciiCompatible) return write(Integer.toString(value));
+        ensureCapacity(MAX_INT_LENGTH);
+
+        // Negative values fit Integer.MIN_VALUE
+        int rest = value;
+        if (rest < 0) buffer[size++] = '-';
+        else rest = -rest;
+
+        int length = 1;
+        for (int i = rest; i <= -10; i /= 10) ++length;
+
+        for (int i = size + length - 1; i >= size; --i, rest /= 10)
+            buffer[i] = (byte) ('0' - rest % 10);
+
+        size += length;
+        return this;
+    }
+
+    /**
+     * Writes double as {@link Double#toString(double)} does.
+     * Digits are written directly into buffer
+     * if {@link DoubleFormatter} produces the same output
+     * @param value double to write
+     * @return this writer
+     */
+
+    ResultWriter write(final double value) {
+        if (isAsciiCompatible && DoubleFormatter.isSameAsRuntime(value)) {
+            ensureCapacity(DoubleFormatter.MAX_LENGTH);
+            size = formatter.write(value, buffer, size);
+            return this;
+        }
+
+        decimal.setLength(0);
+        decimal.append(value);
+
+        if (!isAsciiCompatible) return write(decimal.toString());
+        ensureCapacity(decimal.length());
+
+        for (int i = 0; i < decimal.length(); ++i)
+            buffer[size++] = (byte) decimal.charAt(i);
+
+        return this;
+    }
+
+    /**
+     * Writes text encoded with output's charset.
+     * ASCII text is copied without encoding
+     * @param text text to write
+     * @return this writer
+     */
+
+    ResultWriter write(final String text) {
+        final int length = text.length();
+
+        if (isAsciiCompatible && length <= CAPACITY) {
+            ensureCapacity(length);
+            int i = 0;
+
+            for (; i < length; ++i) {
+                final char c = text.charAt(i);
+                if (c >= 0x80) break;
+                buffer[size + i] = (byte) c;
+            }
+
+            if (i == length) {
+                size += length;
+                return this;
+            }
+        }
+
+        return write(text.getBytes(charset));
+    }
+
+    /**
+     * Writes line separator
+     * @return this writer
+     */
+
+    ResultWriter writeLine() { return write(lineSeparator); }
+
+    /**
+     * Writes text and line separator, as {@link PrintStream#println(String)} does
+     * @param text text to write (null is written as "null")
+     * @return this writer
+     */
+
+    ResultWriter writeLine(final String text) { return write(String.valueOf(text)).writeLine(); }
+
+    /**
+     * Writes pre-encoded warning with line separator
+     * @param status status of failed command
+     * @return this writer
+     */
+
+    ResultWriter writeWarning(final CalculationStatus status) { return write(warnings[status.ordinal()]); }
+
+    /** Writes all buffered bytes to output and flushes it */
+
+    void flush() {
+        output.write(buffer, 0, size);
+        output.flush();
+        size = 0;
+    }
+
+    /**
+     * Copies bytes into buffer.
+     * Bytes that don't fit into empty buffer are written directly
+     * @param bytes bytes to write
+     * @return this writer
+     */
+
+    private ResultWriter write(final byte[] bytes) {
+        if (bytes.length > CAPACITY - size) flush();
+
+        if (bytes.length >= CAPACITY) {
+            output.write(bytes, 0, bytes.length);
+            return this;
+        }
+
+        System.arraycopy(bytes, 0, buffer, size, bytes.length);
+        size += bytes.length;
+        return this;
+    }
+
+    /**
+     * Flushes buffer if it has less than given free bytes
+     * @param length amount of bytes to write
+     */
+
+    private void ensureCapacity(final int length) {
+        if (CAPACITY - size < length) flush();
+    }
+}
+
+/**
+ * Shortest decimal formatter of doubles
+ * (Schubfach algorithm by Raffaello Giulietti).
+ * Writes the same characters as {@link Double#toString(double)}
+ * of JDK 19+ (that uses the same algorithm) directly into a byte buffer.
+ * Older runtimes sometimes print more digits than needed,
+ * see {@link DoubleFormatter#isSameAsRuntime(double)}
+ */
+
+final class DoubleFormatter {
+
+    /** Max length of formatted double, e.g. "-2.2250738585072014E-308" */
+    static final int MAX_LENGTH = 24;
+
+    /** Whether {@link Double#toString(double)} of the current runtime is the shortest one */
+    private static final boolean IS_RUNTIME_SHORTEST = Runtime.version().feature() >= 19;
+
+    /** Integral doubles below are printed the same by all runtimes */
+    private static final double MAX_PLAIN_INTEGER = 1e7;
+
+    /** Precision of double in bits */
+    private static final int P = 53;
+
+    /** Min binary exponent of double's significand */
+    private static final int Q_MIN = -1074;
+
+    /** Min normal significand */
+    private static final long C_MIN = 1L << P - 1;
+
+    /** Subnormal significands below get an extra digit */
+    private static final long C_TINY = 3;
+
+    private static final int BQ_MASK = 0x7FF;
+    private static final long T_MASK = C_MIN - 1;
+    private static final long MASK_63 = Long.MAX_VALUE;
+
+    /** Range of decimal exponents */
+    private static final int K_MIN = -324;
+    private static final int K_MAX = 292;
+
+    /** Max amount of digits in significand */
+    private static final int H = 17;
+
+    /**
+     * 126-bit approximations of 10^-k for k in [K_MIN..K_MAX]:
+     * if 10^-k = beta 2^r with 2^125 <= beta < 2^126, then g = floor(beta) + 1
+     * is stored as two 63-bit halves. Computed once instead of hardcoding 1234 constants
+     */
+
+    private static final long[] G = new long[(K_MAX - K_MIN + 1) * 2];
+
+    static {
+        for (int k = K_MIN; k <= K_MAX; ++k) {
+            final BigInteger power = BigInteger.TEN.pow(Math.abs(k));
+            final BigInteger beta;
+
+            if (k <= 0) {
+                final int shift = power.bitLength() - 126;
+                beta = shift >= 0 ? power.shiftRight(shift) : power.shiftLeft(-shift);
+            } else {
+                beta = BigInteger.ONE.shiftLeft(125 + power.bitLength()).divide(power);
+            }
+
+            final BigInteger g = beta.add(BigInteger.ONE);
+            G[k - K_MIN << 1] = g.shiftRight(63).longValue();
+            G[k - K_MIN << 1 | 1] = g.longValue() & MASK_63;
+        }
+    }
+
+    /** Digits of the current double (up to {@link DoubleFormatter#H}) */
+    private long significand;
+
+    /** Decimal exponent of the current double */
+    private int exponent;
+
+    /** Reusable digits of significand */
+    private final byte[] digits = new byte[H + 2];
+
+    /**
+     * Checks whether {@link DoubleFormatter} writes the same as
+     * {@link Double#toString(double)} of the current runtime.
+     * JDK 19+ always matches, older ones only for
+     * zeros, NaN, infinities and small integers
+     * @param value double to check
+     * @return true if formatter can be used
+     */
+
+    static boolean isSameAsRuntime(final double value) {
+        return IS_RUNTIME_SHORTEST
+                || Double.isNaN(value)
+                || Double.isInfinite(value)
+                || Math.abs(value) < MAX_PLAIN_INTEGER && value == (long) value;
+    }
+
+    /**
+     * Writes shortest decimal that rounds to the given double
+     * @param value double to write
+     * @param buffer buffer with at least {@link DoubleFormatter#MAX_LENGTH} free bytes
+     * @param offset where to start writing
+     * @return offset after written double
+     */
+
+    int write(final double value, final byte[] buffer, final int offset) {
+        final long bits = Double.doubleToRawLongBits(value);
+        final long t = bits & T_MASK;
+        final int bq = (int) (bits >>> P - 1) & BQ_MASK;
+
+        if (bq == BQ_MASK)
+            return writeAscii(t != 0 ? "NaN" : bits > 0 ? "Infinity" : "-Infinity", buffer, offset);
+
+        int position = offset;
+        if (bits < 0) buffer[position++] = '-';
+
+        if (bq != 0) {
+            // Normal double: c 2^q
+            final int mq = -Q_MIN + 1 - bq;
+            final long c = C_MIN | t;
+
+            if (0 < mq && mq < P && (c >> mq) << mq == c) {
+                // Integers below 2^53 are exact
+                significand = c >> mq;
+                exponent = 0;
+            } else {
+                toDecimal(-mq, c, 0);
+            }
+        } else if (t != 0) {
+            // Subnormal double
+            if (t < C_TINY) toDecimal(Q_MIN, 10 * t, -1);
+            else toDecimal(Q_MIN, t, 0);
+        } else {
+            return writeAscii("0.0", buffer, position);
+        }
+
+        return writeDecimal(buffer, position);
+    }
+
+    /**
+     * Finds the shortest decimal in the rounding interval of c 2^q.
+     * Among the shortest ones, the closest to c 2^q is selected
+     * (with even significand on tie). Result is stored in
+     * {@link DoubleFormatter#significand} and {@link DoubleFormatter#exponent}
+     * @param q binary exponent
+     * @param c significand
+     * @param dk correction of decimal exponent for tiny subnormals
+     */
+
+    private void toDecimal(final int q, final long c, final int dk) {
+        // Interval bounds are included for even significands
+        final int out = (int) c & 0x1;
+
+        final long cb = c << 2;
+        final long cbr = cb + 2;
+        final long cbl;
+        final int k;
+
+        if (c != C_MIN || q == Q_MIN) {
+            cbl = cb - 2;
+            k = floorLog10Pow2(q);
+        } else {
+            // Lower gap is twice smaller at powers of two
+            cbl = cb - 1;
+            k = floorLog10ThreeQuartersPow2(q);
+        }
+
+        final int h = q + floorLog2Pow10(-k) + 2;
+        final long g1 = G[k - K_MIN << 1];
+        final long g0 = G[k - K_MIN << 1 | 1];
+
+        final long vb = roundToOdd(g1, g0, cb << h);
+        final long vbl = roundToOdd(g1, g0, cbl << h);
+        final long vbr = roundToOdd(g1, g0, cbr << h);
+
+        final long s = vb >> 2;
+
+        if (s >= 100) {
+            // Trying one digit less
+            final long sp10 = s / 10 * 10;
+            final long tp10 = sp10 + 10;
+            final boolean isSp10Inside = vbl + out <= sp10 << 2;
+            final boolean isTp10Inside = (tp10 << 2) + out <= vbr;
+
+            if (isSp10Inside != isTp10Inside) {
+                significand = isSp10Inside ? sp10 : tp10;
+                exponent = k;
+                return;
+            }
+        }
+
+        final long t = s + 1;
+        final boolean isSInside = vbl + out <= s << 2;
+        final boolean isTInside = (t << 2) + out <= vbr;
+        exponent = k + dk;
+
+        if (isSInside != isTInside) {
+            significand = isSInside ? s : t;
+            return;
+        }
+
+        final long compared = vb - (s + t << 1);
+        significand = compared < 0 || compared == 0 && (s & 0x1) == 0 ? s : t;
+    }
+
+    /**
+     * Computes (g1 2^63 + g0) cp / 2^127 rounded to odd
+     * @param g1 high half of g
+     * @param g0 low half of g
+     * @param cp scaled bound
+     * @return rounded product
+     */
+
+    private static long roundToOdd(final long g1, final long g0, final long cp) {
+        final long x1 = Math.multiplyHigh(g0, cp);
+        final long y0 = g1 * cp;
+        final long y1 = Math.multiplyHigh(g1, cp);
+        final long z = (y0 >>> 1) + x1;
+        final long vbp = y1 + (z >>> 63);
+        return vbp | (z & MASK_63) + MASK_63 >>> 63;
+    }
+
+    /** @return floor(log10(2^q)) for |q| <= 5456721 */
+
+    private static int floorLog10Pow2(final int q) {
+        return (int) (q * 661_971_961_083L >> 41);
+    }
+
+    /** @return floor(log10(3/4 2^q)) for |q| <= 5456721 */
+
+    private static int floorLog10ThreeQuartersPow2(final int q) {
+        return (int) (q * 661_971_961_083L + -274_743_187_321L >> 41);
+    }
+
+    /** @return floor(log2(10^e)) for |e| <= 1838394 */
+
+    private static int floorLog2Pow10(final int e) {
+        return (int) (e * 913_124_641_741L >> 38);
+    }
+
+    /**
+     * Writes {@link DoubleFormatter#significand} 10^{@link DoubleFormatter#exponent}
+     * in the format of {@link Double#toString(double)}:
+     * plain for [10^-3, 10^7), computerized scientific notation otherwise.
+     * At least one digit is always written after the point
+     * @param buffer buffer to write to
+     * @param offset where to start writing
+     * @return offset after written double
+     */
+
+    private int writeDecimal(final byte[] buffer, final int offset) {
+        long f = significand;
+        int e = exponent;
 
-            while (commands-- > 0) try {
+        for (; f % 10 == 0; f /= 10) ++e;
 
-                // Reading and parsing command
+        int length = 0;
+        for (long rest = f; rest > 0; rest /= 10) ++length;
+        for (int i = length - 1; i >= 0; --i, f /= 10) digits[i] = (byte) ('0' + f % 10);
 
-                final String[] input = reader.readLine().split(" ");
+        // Value is 0.digits 10^point
+        final int point = e + length;
+        int position = offset;
 
-                if (input.length != 3)
-                    throw new IllegalArgumentException("Wrong argument type");
+        if (0 < point && point <= 7) {
+            final int integerLength = Math.min(point, length);
+            System.arraycopy(digits, 0, buffer, position, integerLength);
+            position += integerLength;
 
-                // Executing command and printing result or throwing error
+            for (int i = length; i < point; ++i) buffer[position++] = '0';
+            buffer[position++] = '.';
 
-                System.out.println(
-                        Calculator.getInstance().calculate(
-                                new Operation(
-                                        input[1],
-                                        input[2],
-                                        Console.getInstance().parseOperation(input[0])
-                                )
-                        )
-                );
-            } catch (final Exception warning) {
-                // Reporting warning and continuing with other commands
-                Console.getInstance().reportWarning(warning.getMessage());
+            if (point < length) {
+                System.arraycopy(digits, point, buffer, position, length - point);
+                position += length - point;
+            } else {
+                buffer[position++] = '0';
             }
-        } catch (final Exception fatalError) {
-            // Reporting fatal error and finishing execution
-            Console.getInstance().reportFatalError(fatalError.getMessage());
-        } finally {
-            // Closing all readers after execution
-            reader.close();
-            scanner.close();
+
+            return position;
         }
-    }
-}
 
-enum CalculatorType { INTEGER, DOUBLE, STRING, INCORRECT }
+        if (-3 < point && point <= 0) {
+            buffer[position++] = '0';
+            buffer[position++] = '.';
+            for (int i = point; i < 0; ++i) buffer[position++] = '0';
+            System.arraycopy(digits, 0, buffer, position, length);
+            return position + length;
+        }
 
-enum OperationType { ADDITION, SUBTRACTION, MULTIPLICATION, DIVISION, INCORRECT }
+        buffer[position++] = digits[0];
+        buffer[position++] = '.';
 
-/**
- * Operation struct with two args and type of operation.
- * While args allowed to be invalid,
- * {@link Operation#type} should always be correct
- */
+        if (length > 1) {
+            System.arraycopy(digits, 1, buffer, position, length - 1);
+            position += length - 1;
+        } else {
+            buffer[position++] = '0';
+        }
 
-final class Operation {
-    final String arg1;
-    final String arg2;
-    final OperationType type;
+        buffer[position++] = 'E';
+        int scientificExponent = point - 1;
+
+        if (scientificExponent < 0) {
+            buffer[position++] = '-';
+            scientificExponent = -scientificExponent;
+        }
+
+        if (scientificExponent >= 100) buffer[position++] = (byte) ('0' + scientificExponent / 100);
+        if (scientificExponent >= 10) buffer[position++] = (byte) ('0' + scientificExponent / 10 % 10);
+        buffer[position++] = (byte) ('0' + scientificExponent % 10);
+        return position;
+    }
 
     /**
-     * @param arg1 first argument of operation
-     * @param arg2 second argument of operation
-     * @param type correct {@link OperationType}
-     * @throws IllegalArgumentException if type is {@link OperationType#INCORRECT}
+     * Writes ASCII text
+     * @param text text to write
+     * @param buffer buffer to write to
+     * @param offset where to start writing
+     * @return offset after written text
      */
 
-    Operation(
-            final String arg1,
-            final String arg2,
-            final OperationType type
-    ) throws IllegalArgumentException {
-        if (type == OperationType.INCORRECT)
-            throw new IllegalArgumentException("Wrong operation type");
-
-        this.arg1 = arg1;
-        this.arg2 = arg2;
-        this.type = type;
+    private static int writeAscii(final String text, final byte[] buffer, final int offset) {
+        for (int i = 0; i < text.length(); ++i) buffer[offset + i] = (byte) text.charAt(i);
+        return offset + text.length();
     }
 }
 
@@ -273,6 +1144,85 @@ abstract class Calculator {
 
     private static volatile Calculator instance;
 
+    /*
+     * Preallocated errors of the string and primitive API.
+     * They are thrown on every bad command, so their
+     * stack traces are cleared once and never filled again
+     */
+
+    private static final NumberFormatException WRONG_ARGUMENT_TYPE =
+            withoutStackTrace(new NumberFormatException(CalculationStatus.WRONG_ARGUMENT_TYPE.message));
+
+    private static final IllegalArgumentException WRONG_OPERATION_TYPE =
+            withoutStackTrace(new IllegalArgumentException(CalculationStatus.WRONG_OPERATION_TYPE.message));
+
+    private static final ArithmeticException DIVISION_BY_ZERO =
+            withoutStackTrace(new ArithmeticException(CalculationStatus.DIVISION_BY_ZERO.message));
+
+    private static final IllegalStateException UNSUPPORTED_OPERATION =
+            withoutStackTrace(new IllegalStateException(CalculationStatus.UNSUPPORTED_OPERATION.message));
+
+    private static final IllegalArgumentException TIMES_MUST_BE_NATURAL =
+            withoutStackTrace(new IllegalArgumentException(CalculationStatus.TIMES_MUST_BE_NATURAL.message));
+
+    /**
+     * Value that is returned by integer parsers on error.
+     * It is out of both int and unsigned int ranges
+     */
+
+    static final long NOT_AN_INTEGER = Long.MIN_VALUE;
+
+    /**
+     * Clears stack trace of a preallocated error
+     * @param error error to clear
+     * @return error itself
+     */
+
+    private static <T extends RuntimeException> T withoutStackTrace(final T error) {
+        error.setStackTrace(new StackTraceElement[0]);
+        return error;
+    }
+
+    /**
+     * Parses integer as {@link Integer#parseInt(String)}
+     * or {@link Integer#parseUnsignedInt(String)} would do, but without exceptions.
+     * As there, digits may be any Unicode digits
+     * @param s string to parse
+     * @param isUnsigned whether '-' is forbidden and range is [0..2^32)
+     * @return parsed integer or {@link Calculator#NOT_AN_INTEGER}
+     */
+
+    static long parseInteger(final CharSequence s, final boolean isUnsigned) {
+        final int length = s.length();
+        if (length == 0) return NOT_AN_INTEGER;
+
+        int i = 0;
+        boolean isNegative = false;
+        final char first = s.charAt(0);
+
+        if (first == '-' || first == '+') {
+            if (first == '-') {
+                if (isUnsigned) return NOT_AN_INTEGER;
+                isNegative = true;
+            }
+
+            if (length == 1) return NOT_AN_INTEGER;
+            i = 1;
+        }
+
+        final long bound = isUnsigned ? 0xFFFF_FFFFL : isNegative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE;
+        long result = 0;
+
+        for (; i < length; ++i) {
+            final int digit = Character.digit(s.charAt(i), 10);
+            if (digit < 0) return NOT_AN_INTEGER;
+            result = result * 10 + digit;
+            if (result > bound) return NOT_AN_INTEGER;
+        }
+
+        return isNegative ? -result : result;
+    }
+
     /**
      * Initializes calculator by given type with monitor's protection.
      * @param type type of calculator
@@ -363,10 +1313,122 @@ abstract class Calculator {
             case SUBTRACTION: return subtract(operation.arg1, operation.arg2);
             case MULTIPLICATION: return multiply(operation.arg1, operation.arg2);
             case DIVISION: return divide(operation.arg1, operation.arg2);
-            default: throw new IllegalArgumentException("Wrong operation type");
+            default: throw WRONG_OPERATION_TYPE;
+        }
+    }
+
+    /**
+     * Executes operation on integers without any parsing or formatting.
+     * Overflow wraps around, as in Java's arithmetic
+     * @param type type of operation
+     * @param a first arg
+     * @param b second arg
+     * @return result of operation
+     * @throws IllegalArgumentException operation type is {@link OperationType#INCORRECT}
+     * @throws ArithmeticException division by zero
+     */
+
+    public static int calculate(final OperationType type, final int a, final int b)
+            throws IllegalArgumentException, ArithmeticException {
+        switch (type) {
+            case ADDITION: return a + b;
+            case SUBTRACTION: return a - b;
+            case MULTIPLICATION: return a * b;
+
+            case DIVISION:
+                if (b == 0) throw DIVISION_BY_ZERO;
+                return a / b;
+
+            default: throw WRONG_OPERATION_TYPE;
+        }
+    }
+
+    /**
+     * Executes operation on longs without any parsing or formatting.
+     * Overflow wraps around, as in Java's arithmetic
+     * @param type type of operation
+     * @param a first arg
+     * @param b second arg
+     * @return result of operation
+     * @throws IllegalArgumentException operation type is {@link OperationType#INCORRECT}
+     * @throws ArithmeticException division by zero
+     */
+
+    public static long calculate(final OperationType type, final long a, final long b)
+            throws IllegalArgumentException, ArithmeticException {
+        switch (type) {
+            case ADDITION: return a + b;
+            case SUBTRACTION: return a - b;
+            case MULTIPLICATION: return a * b;
+
+            case DIVISION:
+                if (b == 0) throw DIVISION_BY_ZERO;
+                return a / b;
+
+            default: throw WRONG_OPERATION_TYPE;
         }
     }
 
+    /**
+     * Executes operation on doubles without any parsing or formatting.
+     * Unlike IEEE 754, division by both zeros is an error
+     * @param type type of operation
+     * @param a first arg
+     * @param b second arg
+     * @return result of operation
+     * @throws IllegalArgumentException operation type is {@link OperationType#INCORRECT}
+     * @throws ArithmeticException division by zero
+     */
+
+    public static double calculate(final OperationType type, final double a, final double b)
+            throws IllegalArgumentException, ArithmeticException {
+        switch (type) {
+            case ADDITION: return a + b;
+            case SUBTRACTION: return a - b;
+            case MULTIPLICATION: return a * b;
+
+            case DIVISION:
+                if (b == 0) throw DIVISION_BY_ZERO;
+                return a / b;
+
+            default: throw WRONG_OPERATION_TYPE;
+        }
+    }
+
+    /**
+     * Executes operation with args of the current command
+     * that are taken directly from {@link CommandReader}'s buffer.
+     * Errors are reported with status, nothing is thrown
+     * @param type type of operation
+     * @param command tokenized command
+     * @param result writer to write result to (only on success)
+     * @return {@link CalculationStatus#SUCCESS} or warning
+     */
+
+    public final CalculationStatus calculate(
+            final OperationType type,
+            final CommandReader command,
+            final ResultWriter result
+    ) {
+        if (type == OperationType.INCORRECT)
+            return CalculationStatus.WRONG_OPERATION_TYPE;
+        return calculateInPlace(type, command, result);
+    }
+
+    /**
+     * Executes correct operation with args of the current command
+     * @param type correct type of operation
+     * @param command tokenized command
+     * @param result writer to write result to (only on success)
+     * @return {@link CalculationStatus#SUCCESS} or warning
+     */
+
+    protected abstract CalculationStatus calculateInPlace(
+            OperationType type,
+            CommandReader command,
+            ResultWriter result
+    );
+
     /** {@link Calculator} for integers */
 
     private static final class IntegerCalculator extends Calculator {
@@ -379,11 +1441,87 @@ abstract class Calculator {
          */
 
         private static int Int(final String s) throws NumberFormatException {
-            try {
-                return Integer.parseInt(s);
-            } catch (final NumberFormatException ignore) {
-                throw new NumberFormatException("Wrong argument type");
+            final long value = parseInteger(s, false);
+            if (value == NOT_AN_INTEGER) throw WRONG_ARGUMENT_TYPE;
+            return (int) value;
+        }
+
+        /**
+         * Parses integer from UTF-8 bytes, as {@link Integer#parseInt(String)} would do.
+         * Only non-ASCII digits are decoded as a string
+         * @param bytes buffer with integer
+         * @param from start of integer
+         * @param to end of integer (exclusive)
+         * @return parsed integer or {@link Calculator#NOT_AN_INTEGER}
+         */
+
+        private static long parseInt(final byte[] bytes, final int from, final int to) {
+            int i = from;
+            final boolean isNegative = i < to && bytes[i] == '-';
+            if (i < to && (bytes[i] == '-' || bytes[i] == '+')) ++i;
+            if (i == to) return NOT_AN_INTEGER;
+
+            // Accumulating negatively to fit Integer.MIN_VALUE
+            final int bound = isNegative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+            int result = 0;
+
+            for (; i < to; ++i) {
+                final int digit = bytes[i] - '0';
+
+                if (digit < 0 || digit > 9) {
+                    if (bytes[i] < 0)
+                        return parseInteger(new String(bytes, from, to - from, StandardCharsets.UTF_8), false);
+                    return NOT_AN_INTEGER;
+                }
+
+                if (result < (bound + digit) / 10)
+                    return NOT_AN_INTEGER;
+
+                result = result * 10 - digit;
             }
+
+            return isNegative ? result : -result;
+        }
+
+        /**
+         * Parses args from command's buffer and executes operation
+         * @param type correct type of operation
+         * @param command tokenized command
+         * @param result writer to write result to (only on success)
+         * @return {@link CalculationStatus#SUCCESS} or warning
+         */
+
+        @Override
+        protected CalculationStatus calculateInPlace(
+                final OperationType type,
+                final CommandReader command,
+                final ResultWriter result
+        ) {
+            final byte[] bytes = command.buffer();
+
+            final long a = parseInt(
+                    bytes,
+                    command.tokenStart(CommandReader.FIRST_ARGUMENT),
+                    command.tokenEnd(CommandReader.FIRST_ARGUMENT)
+            );
+
+            if (a == NOT_AN_INTEGER)
+                return CalculationStatus.WRONG_ARGUMENT_TYPE;
+
+            final long b = parseInt(
+                    bytes,
+                    command.tokenStart(CommandReader.SECOND_ARGUMENT),
+                    command.tokenEnd(CommandReader.SECOND_ARGUMENT)
+            );
+
+            if (b == NOT_AN_INTEGER)
+                return CalculationStatus.WRONG_ARGUMENT_TYPE;
+
+            if (type == OperationType.DIVISION && b == 0)
+                return CalculationStatus.DIVISION_BY_ZERO;
+
+            result.write(calculate(type, (int) a, (int) b));
+            return CalculationStatus.SUCCESS;
         }
 
         /**
@@ -396,7 +1534,7 @@ abstract class Calculator {
 
         @Override
         public String add(final String a, final String b) throws NumberFormatException {
-            return Integer.toString(Int(a) + Int(b));
+            return Integer.toString(calculate(OperationType.ADDITION, Int(a), Int(b)));
         }
 
         /**
@@ -409,7 +1547,7 @@ abstract class Calculator {
 
         @Override
         public String subtract(final String a, final String b) throws NumberFormatException {
-            return Integer.toString(Int(a) - Int(b));
+            return Integer.toString(calculate(OperationType.SUBTRACTION, Int(a), Int(b)));
         }
 
         /**
@@ -422,7 +1560,7 @@ abstract class Calculator {
 
         @Override
         public String multiply(final String a, final String b) throws NumberFormatException {
-            return Integer.toString(Int(a) * Int(b));
+            return Integer.toString(calculate(OperationType.MULTIPLICATION, Int(a), Int(b)));
         }
 
         /**
@@ -436,11 +1574,7 @@ abstract class Calculator {
 
         @Override
         public String divide(final String a, final String b) throws ArithmeticException, NumberFormatException {
-            try {
-                return Integer.toString(Int(a) / Int(b));
-            } catch (final ArithmeticException ignore) {
-                throw new ArithmeticException("Division by zero");
-            }
+            return Integer.toString(calculate(OperationType.DIVISION, Int(a), Int(b)));
         }
     }
 
@@ -456,11 +1590,379 @@ abstract class Calculator {
          */
 
         private static double Decimal(final String s) throws NumberFormatException {
-            try {
-                return Double.parseDouble(s);
-            } catch (final NumberFormatException ignore) {
-                throw new NumberFormatException("Wrong argument type");
+            final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            final long bits = parseDouble(bytes, 0, bytes.length);
+            if (bits == NOT_A_DECIMAL) throw WRONG_ARGUMENT_TYPE;
+            return Double.longBitsToDouble(bits);
+        }
+
+        /**
+         * Bits that are returned by double parser on error.
+         * It is a signaling NaN, while parsed NaN is always quiet
+         */
+
+        private static final long NOT_A_DECIMAL = 0x7FF0_0000_0000_0001L;
+
+        /** Max mantissa that is exactly representable as double */
+        private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+        /** Powers of ten that are exactly representable as double */
+        private static final double[] EXACT_POWERS_OF_TEN = {
+                1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+                1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20,
+                1e21, 1e22
+        };
+
+        /** Max amount of significant digits that always fits into unsigned long */
+        private static final int MAX_MANTISSA_DIGITS = 19;
+
+        /** Range of decimal exponents with approximated powers of ten */
+        private static final int MIN_POWER_OF_TEN = -348;
+        private static final int MAX_POWER_OF_TEN = 347;
+
+        private static final int EXPONENT_BIAS = 1023;
+        private static final int INFINITE_EXPONENT = 0x7FF;
+        private static final long SIGNIFICAND_MASK = (1L << 52) - 1;
+        private static final long SIGN_BIT = Long.MIN_VALUE;
+
+        /** Low bits of product that are dropped when it is rounded to 54 bits */
+        private static final long TRUNCATED_BITS_MASK = 0x1FF;
+
+        /**
+         * 128-bit approximations of 10^q for q in [MIN_POWER_OF_TEN..MAX_POWER_OF_TEN]:
+         * if 10^q = beta 2^r with 2^127 <= beta < 2^128, then floor(beta)
+         * is stored as low and high 64-bit halves. Computed once instead of hardcoding 1392 constants
+         */
+
+        private static final long[] POWERS_OF_TEN = new long[(MAX_POWER_OF_TEN - MIN_POWER_OF_TEN + 1) * 2];
+
+        static {
+            for (int q = MIN_POWER_OF_TEN; q <= MAX_POWER_OF_TEN; ++q) {
+                final BigInteger power = BigInteger.TEN.pow(Math.abs(q));
+                BigInteger beta = q >= 0 ? power : BigInteger.ONE.shiftLeft(129 + power.bitLength()).divide(power);
+
+                final int shift = beta.bitLength() - 128;
+                beta = shift >= 0 ? beta.shiftRight(shift) : beta.shiftLeft(-shift);
+
+                POWERS_OF_TEN[q - MIN_POWER_OF_TEN << 1] = beta.longValue();
+                POWERS_OF_TEN[q - MIN_POWER_OF_TEN << 1 | 1] = beta.shiftRight(64).longValue();
+            }
+        }
+
+        /**
+         * Parses double from UTF-8 bytes, as {@link Double#parseDouble(String)} would do.
+         * Plain decimals with exact mantissa and small exponent are computed
+         * with a single correctly rounded operation, other plain decimals
+         * with up to 19 significant digits are rounded with Eisel-Lemire algorithm.
+         * Everything else (longer mantissas, ambiguous roundings, subnormals,
+         * overflows, hex, 'NaN', 'Infinity', suffixes and surrounding whitespaces)
+         * is validated and decoded as a string
+         * @param bytes buffer with double
+         * @param from start of double
+         * @param to end of double (exclusive)
+         * @return bits of parsed double or {@link DoubleCalculator#NOT_A_DECIMAL}
+         */
+
+        private static long parseDouble(final byte[] bytes, final int from, final int to) {
+            int i = from;
+            final boolean isNegative = i < to && bytes[i] == '-';
+            if (i < to && (bytes[i] == '-' || bytes[i] == '+')) ++i;
+
+            long mantissa = 0;
+            int digits = 0;
+            int significantDigits = 0;
+            int exponent = 0;
+
+            for (; i < to && bytes[i] >= '0' && bytes[i] <= '9'; ++i, ++digits) {
+                if (significantDigits == MAX_MANTISSA_DIGITS)
+                    return parseDoubleSlowly(bytes, from, to);
+
+                mantissa = mantissa * 10 + (bytes[i] - '0');
+                if (mantissa != 0) ++significantDigits;
+            }
+
+            if (i < to && bytes[i] == '.') {
+                for (++i; i < to && bytes[i] >= '0' && bytes[i] <= '9'; ++i, ++digits, --exponent) {
+                    if (significantDigits == MAX_MANTISSA_DIGITS)
+                        return parseDoubleSlowly(bytes, from, to);
+
+                    mantissa = mantissa * 10 + (bytes[i] - '0');
+                    if (mantissa != 0) ++significantDigits;
+                }
+            }
+
+            if (digits == 0)
+                return parseDoubleSlowly(bytes, from, to);
+
+            if (i < to && (bytes[i] == 'e' || bytes[i] == 'E')) {
+                ++i;
+                final boolean isExponentNegative = i < to && bytes[i] == '-';
+                if (i < to && (bytes[i] == '-' || bytes[i] == '+')) ++i;
+
+                final int exponentStart = i;
+                int explicitExponent = 0;
+
+                for (; i < to && bytes[i] >= '0' && bytes[i] <= '9' && explicitExponent < 1000; ++i)
+                    explicitExponent = explicitExponent * 10 + (bytes[i] - '0');
+
+                if (i == exponentStart)
+                    return parseDoubleSlowly(bytes, from, to);
+
+                exponent += isExponentNegative ? -explicitExponent : explicitExponent;
+            }
+
+            if (i != to)
+                return parseDoubleSlowly(bytes, from, to);
+
+            final long bits;
+
+            if (mantissa == 0) {
+                bits = 0;
+            } else if (Long.compareUnsigned(mantissa, MAX_EXACT_MANTISSA) <= 0 && exponent >= -22 && exponent <= 22) {
+                bits = Double.doubleToRawLongBits(
+                        exponent < 0 ?
+                                mantissa / EXACT_POWERS_OF_TEN[-exponent] :
+                                mantissa * EXACT_POWERS_OF_TEN[exponent]
+                );
+            } else if (exponent >= MIN_POWER_OF_TEN && exponent <= MAX_POWER_OF_TEN) {
+                bits = eiselLemire(mantissa, exponent);
+                if (bits == NOT_A_DECIMAL) return parseDoubleSlowly(bytes, from, to);
+            } else {
+                return parseDoubleSlowly(bytes, from, to);
+            }
+
+            return isNegative ? bits | SIGN_BIT : bits;
+        }
+
+        /**
+         * Rounds mantissa * 10^exponent to the nearest double with Eisel-Lemire algorithm.
+         * Mantissa is multiplied by 128-bit approximation of the power of ten;
+         * if truncated bits of the product may change the rounding
+         * or result is not a normal double, the computation is given up
+         * @param mantissa unsigned non-zero mantissa
+         * @param exponent decimal exponent in [MIN_POWER_OF_TEN..MAX_POWER_OF_TEN]
+         * @return bits of positive double or {@link DoubleCalculator#NOT_A_DECIMAL}
+         */
+
+        private static long eiselLemire(final long mantissa, final int exponent) {
+            final int leadingZeros = Long.numberOfLeadingZeros(mantissa);
+            final long normalized = mantissa << leadingZeros;
+            long binaryExponent = (217706L * exponent >> 16) + 64 + EXPONENT_BIAS - leadingZeros;
+
+            final int index = exponent - MIN_POWER_OF_TEN << 1;
+            long high = unsignedMultiplyHigh(normalized, POWERS_OF_TEN[index | 1]);
+            long low = normalized * POWERS_OF_TEN[index | 1];
+
+            if ((high & TRUNCATED_BITS_MASK) == TRUNCATED_BITS_MASK && Long.compareUnsigned(low + normalized, normalized) < 0) {
+                final long lowerHigh = unsignedMultiplyHigh(normalized, POWERS_OF_TEN[index]);
+                final long lowerLow = normalized * POWERS_OF_TEN[index];
+                final long mergedLow = low + lowerHigh;
+                final long mergedHigh = Long.compareUnsigned(mergedLow, low) < 0 ? high + 1 : high;
+
+                if ((mergedHigh & TRUNCATED_BITS_MASK) == TRUNCATED_BITS_MASK
+                        && mergedLow == -1
+                        && Long.compareUnsigned(lowerLow + normalized, normalized) < 0)
+                    return NOT_A_DECIMAL;
+
+                high = mergedHigh;
+                low = mergedLow;
+            }
+
+            final int upperBit = (int) (high >>> 63);
+            long significand = high >>> upperBit + 9;
+            binaryExponent -= 1 ^ upperBit;
+
+            // Exactly halfway between two doubles
+            if (low == 0 && (high & TRUNCATED_BITS_MASK) == 0 && (significand & 3) == 1)
+                return NOT_A_DECIMAL;
+
+            significand = significand + (significand & 1) >>> 1;
+
+            if (significand >>> 53 != 0) {
+                significand >>>= 1;
+                ++binaryExponent;
+            }
+
+            if (binaryExponent <= 0 || binaryExponent >= INFINITE_EXPONENT)
+                return NOT_A_DECIMAL;
+
+            return binaryExponent << 52 | significand & SIGNIFICAND_MASK;
+        }
+
+        /**
+         * Computes high 64 bits of unsigned 128-bit product
+         * @param x first unsigned factor
+         * @param y second unsigned factor
+         * @return high half of x * y
+         */
+
+        private static long unsignedMultiplyHigh(final long x, final long y) {
+            return Math.multiplyHigh(x, y) + (x >> 63 & y) + (y >> 63 & x);
+        }
+
+        /**
+         * Validates double with {@link DoubleCalculator#isDecimal(byte[], int, int)},
+         * so that {@link Double#parseDouble(String)} never throws
+         * @param bytes buffer with double
+         * @param from start of double
+         * @param to end of double (exclusive)
+         * @return bits of parsed double or {@link DoubleCalculator#NOT_A_DECIMAL}
+         */
+
+        private static long parseDoubleSlowly(final byte[] bytes, final int from, final int to) {
+            if (!isDecimal(bytes, from, to)) return NOT_A_DECIMAL;
+
+            // Valid doubles are always ASCII
+            return Double.doubleToRawLongBits(
+                    Double.parseDouble(new String(bytes, from, to - from, StandardCharsets.ISO_8859_1))
+            );
+        }
+
+        /**
+         * Checks whether UTF-8 bytes are accepted by {@link Double#parseDouble(String)}:
+         * optionally signed 'NaN', 'Infinity', decimal or hexadecimal number
+         * with optional 'f', 'F', 'd' or 'D' suffix, surrounded by any control characters
+         * @param bytes buffer with double
+         * @param from start of double
+         * @param to end of double (exclusive)
+         * @return true if double can be parsed
+         */
+
+        private static boolean isDecimal(final byte[] bytes, final int from, final int to) {
+            int i = from;
+            int end = to;
+
+            // Same as String#trim(), non-ASCII bytes are negative
+            while (i < end && bytes[i] >= 0 && bytes[i] <= ' ') ++i;
+            while (end > i && bytes[end - 1] >= 0 && bytes[end - 1] <= ' ') --end;
+
+            if (i < end && (bytes[i] == '-' || bytes[i] == '+')) ++i;
+            if (isWord(bytes, i, end, "NaN") || isWord(bytes, i, end, "Infinity")) return true;
+
+            if (i + 1 < end && bytes[i] == '0' && (bytes[i + 1] == 'x' || bytes[i + 1] == 'X'))
+                return isHexadecimal(bytes, i + 2, end);
+
+            int digits = 0;
+            boolean hasPoint = false;
+
+            for (; i < end; ++i) {
+                if (bytes[i] >= '0' && bytes[i] <= '9') ++digits;
+                else if (bytes[i] == '.' && !hasPoint) hasPoint = true;
+                else break;
+            }
+
+            if (digits == 0) return false;
+
+            if (i < end && (bytes[i] == 'e' || bytes[i] == 'E')) {
+                if (++i < end && (bytes[i] == '-' || bytes[i] == '+')) ++i;
+                final int exponentStart = i;
+                while (i < end && bytes[i] >= '0' && bytes[i] <= '9') ++i;
+                if (i == exponentStart) return false;
+            }
+
+            return isSuffix(bytes, i, end);
+        }
+
+        /**
+         * Checks hexadecimal part of double after '0x':
+         * hex digits with optional point (at least one digit),
+         * binary exponent and optional suffix
+         * @param bytes buffer with double
+         * @param from start of hex digits
+         * @param to end of double (exclusive)
+         * @return true if hexadecimal double is correct
+         */
+
+        private static boolean isHexadecimal(final byte[] bytes, final int from, final int to) {
+            int i = from;
+            int digits = 0;
+            boolean hasPoint = false;
+
+            for (; i < to; ++i) {
+                if (Character.digit(bytes[i], 16) >= 0) ++digits;
+                else if (bytes[i] == '.' && !hasPoint) hasPoint = true;
+                else break;
             }
+
+            if (digits == 0 || i == to || (bytes[i] != 'p' && bytes[i] != 'P')) return false;
+            if (++i < to && (bytes[i] == '-' || bytes[i] == '+')) ++i;
+
+            final int exponentStart = i;
+            while (i < to && bytes[i] >= '0' && bytes[i] <= '9') ++i;
+            return i != exponentStart && isSuffix(bytes, i, to);
+        }
+
+        /**
+         * @param bytes buffer with double
+         * @param from start of possible suffix
+         * @param to end of double (exclusive)
+         * @return true if nothing or single 'f', 'F', 'd' or 'D' is left
+         */
+
+        private static boolean isSuffix(final byte[] bytes, final int from, final int to) {
+            if (from == to) return true;
+            if (from + 1 != to) return false;
+            final byte suffix = bytes[from];
+            return suffix == 'f' || suffix == 'F' || suffix == 'd' || suffix == 'D';
+        }
+
+        /**
+         * @param bytes buffer with double
+         * @param from start of word
+         * @param to end of double (exclusive)
+         * @param word ASCII word to compare with
+         * @return true if bytes are exactly the word
+         */
+
+        private static boolean isWord(final byte[] bytes, final int from, final int to, final String word) {
+            if (to - from != word.length()) return false;
+            for (int i = 0; i < word.length(); ++i)
+                if (bytes[from + i] != word.charAt(i)) return false;
+            return true;
+        }
+
+        /**
+         * Parses args from command's buffer and executes operation
+         * @param type correct type of operation
+         * @param command tokenized command
+         * @param result writer to write result to (only on success)
+         * @return {@link CalculationStatus#SUCCESS} or warning
+         */
+
+        @Override
+        protected CalculationStatus calculateInPlace(
+                final OperationType type,
+                final CommandReader command,
+                final ResultWriter result
+        ) {
+            final byte[] bytes = command.buffer();
+
+            final long b = parseDouble(
+                    bytes,
+                    command.tokenStart(CommandReader.SECOND_ARGUMENT),
+                    command.tokenEnd(CommandReader.SECOND_ARGUMENT)
+            );
+
+            if (b == NOT_A_DECIMAL)
+                return CalculationStatus.WRONG_ARGUMENT_TYPE;
+
+            final double second = Double.longBitsToDouble(b);
+
+            // Divisor is checked before the dividend is parsed
+            if (type == OperationType.DIVISION && second == 0)
+                return CalculationStatus.DIVISION_BY_ZERO;
+
+            final long a = parseDouble(
+                    bytes,
+                    command.tokenStart(CommandReader.FIRST_ARGUMENT),
+                    command.tokenEnd(CommandReader.FIRST_ARGUMENT)
+            );
+
+            if (a == NOT_A_DECIMAL)
+                return CalculationStatus.WRONG_ARGUMENT_TYPE;
+
+            result.write(calculate(type, Double.longBitsToDouble(a), second));
+            return CalculationStatus.SUCCESS;
         }
 
         /**
@@ -473,7 +1975,7 @@ abstract class Calculator {
 
         @Override
         public String add(final String a, final String b) throws NumberFormatException {
-            return Double.toString(Decimal(a) + Decimal(b));
+            return Double.toString(calculate(OperationType.ADDITION, Decimal(a), Decimal(b)));
         }
 
         /**
@@ -486,7 +1988,7 @@ abstract class Calculator {
 
         @Override
         public String subtract(final String a, final String b) throws NumberFormatException {
-            return Double.toString(Decimal(a) - Decimal(b));
+            return Double.toString(calculate(OperationType.SUBTRACTION, Decimal(a), Decimal(b)));
         }
 
         /**
@@ -499,7 +2001,7 @@ abstract class Calculator {
 
         @Override
         public String multiply(final String a, final String b) throws NumberFormatException {
-            return Double.toString(Decimal(a) * Decimal(b));
+            return Double.toString(calculate(OperationType.MULTIPLICATION, Decimal(a), Decimal(b)));
         }
 
         /**
@@ -513,13 +2015,10 @@ abstract class Calculator {
 
         @Override
         public String divide(final String a, final String b) throws ArithmeticException, NumberFormatException {
-            try {
-                final double second = Decimal(b);
-                if (second == 0) throw new ArithmeticException();
-                return Double.toString(Decimal(a) / second);
-            } catch (final ArithmeticException ignore) {
-                throw new ArithmeticException("Division by zero");
-            }
+            // Divisor is checked before the dividend is parsed
+            final double second = Decimal(b);
+            if (second == 0) throw DIVISION_BY_ZERO;
+            return Double.toString(calculate(OperationType.DIVISION, Decimal(a), second));
         }
     }
 
@@ -548,7 +2047,7 @@ abstract class Calculator {
          */
 
         private static String repeat(final String s, final int times) throws IllegalArgumentException {
-            if (times < 0) throw new IllegalArgumentException("Times must be natural");
+            if (times < 0) throw TIMES_MUST_BE_NATURAL;
             final StringBuilder builder = new StringBuilder(s.length() * times);
             for (int i = 0; i < times; ++i) builder.append(s);
             return builder.toString();
@@ -559,7 +2058,7 @@ abstract class Calculator {
         @Override
         @Deprecated
         public String subtract(final String a, final String b) throws IllegalStateException {
-            throw new IllegalStateException("Unsupported operation for strings");
+            throw UNSUPPORTED_OPERATION;
         }
 
         /**
@@ -573,11 +2072,9 @@ abstract class Calculator {
 
         @Override
         public String multiply(final String a, final String b) throws NumberFormatException {
-            try {
-                return repeat(a, Integer.parseUnsignedInt(b));
-            } catch (final NumberFormatException ignore) {
-                throw new NumberFormatException("Wrong argument type");
-            }
+            final long times = parseInteger(b, true);
+            if (times == NOT_AN_INTEGER) throw WRONG_ARGUMENT_TYPE;
+            return repeat(a, (int) times);
         }
 
         /** @deprecated  not supported for strings */
@@ -585,7 +2082,41 @@ abstract class Calculator {
         @Override
         @Deprecated
         public String divide(final String a, final String b) throws IllegalStateException {
-            throw new IllegalStateException("Unsupported operation for strings");
+            throw UNSUPPORTED_OPERATION;
+        }
+
+        /**
+         * Executes operation with args decoded as strings.
+         * Only repeating of a too long string may throw
+         * @param type correct type of operation
+         * @param command tokenized command
+         * @param result writer to write result to (only on success)
+         * @return {@link CalculationStatus#SUCCESS} or warning
+         */
+
+        @Override
+        protected CalculationStatus calculateInPlace(
+                final OperationType type,
+                final CommandReader command,
+                final ResultWriter result
+        ) {
+            switch (type) {
+                case ADDITION:
+                    result
+                            .write(command.token(CommandReader.FIRST_ARGUMENT))
+                            .write(command.token(CommandReader.SECOND_ARGUMENT));
+                    return CalculationStatus.SUCCESS;
+
+                case MULTIPLICATION:
+                    // Unsigned numbers above Integer.MAX_VALUE become negative, as in Integer#parseUnsignedInt
+                    final long times = parseInteger(command.token(CommandReader.SECOND_ARGUMENT), true);
+                    if (times == NOT_AN_INTEGER) return CalculationStatus.WRONG_ARGUMENT_TYPE;
+                    if ((int) times < 0) return CalculationStatus.TIMES_MUST_BE_NATURAL;
+                    result.write(repeat(command.token(CommandReader.FIRST_ARGUMENT), (int) times));
+                    return CalculationStatus.SUCCESS;
+
+                default: return CalculationStatus.UNSUPPORTED_OPERATION;
+            }
         }
     }
 }
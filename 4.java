@@ -1,1395 +1,5249 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.function.Function;
-import java.util.function.Predicate;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public final class Main {
-    private static final int MIN_NUMBER_OF_PIECES = 2;
+    static final int MIN_NUMBER_OF_PIECES = 2;
+
+    /** Maximum number of pieces in positions cached by the batch */
+    private static final long BATCH_CACHED_PIECES = 1 << 22;
 
     private static Board chessBoard;
 
-    /**
-     * Tries to parse string and return {@link Integer} if it's satisfies the predicate
-     * @param string string to parse
-     * @param predicate checks if value is correct
-     * @param exception exception to throw if something is wrong
-     * @throws ChessException parsed value doesn't satisfy the predicate or there are IO errors
-     * @return parsed integer
-     */
+    public static void main(final String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("perft")) {
+            runPerft(args);
+            return;
+        }
 
-    private static int parseIntOrThrow(
-            final String string,
-            final Predicate<Integer> predicate,
-            final ChessException exception
-    ) throws ChessException {
-        final int integer;
+        if (args.length > 0 && args[0].equals("convert")) {
+            runConvert(args);
+            return;
+        }
 
-        try {
-            integer = Integer.parseInt(string);
-        } catch (final NumberFormatException e) {
-            throw exception;
+        if (args.length > 0 && args[0].equals("summary")) {
+            runSummary(args);
+            return;
         }
 
-        if (!predicate.test(integer))
-            throw exception;
+        if (args.length > 0 && args[0].equals("batch")) {
+            runBatch(args);
+            return;
+        }
 
-        return integer;
+        chessBoard = solve("input.txt", "output.txt", null);
     }
 
     /**
-     * Tries to read {@link Integer} and parse it with {@link Main#parseIntOrThrow(String, Predicate, ChessException)}
-     * @param reader {@link BufferedReader} that reads the string
-     * @param predicate checks if value is correct
-     * @param exception exception to throw if something is wrong
-     * @throws ChessException parsed value doesn't satisfy the predicate or there are IO errors
-     * @return parsed integer
-     * @see Main#parseIntOrThrow(String, Predicate, ChessException)
+     * Reads the board, evaluates all pieces and writes their counts
+     * (or the error message) to the output file
+     * @param inputPath file with the board
+     * @param outputPath file for the result
+     * @param transpositions table shared between boards or null
+     * @return evaluated board or null if the input is not valid
+     * @throws IOException if output can't be written
      */
 
-    private static int readIntOrThrow(
-            final BufferedReader reader,
-            final Predicate<Integer> predicate,
-            final ChessException exception
-    ) throws ChessException, IOException {
-        return parseIntOrThrow(reader.readLine(), predicate, exception);
-    }
+    private static Board solve(
+            final String inputPath,
+            final String outputPath,
+            final TranspositionTable transpositions
+    ) throws IOException {
+        try (final PrintWriter writer = new PrintWriter(new FileWriter(outputPath))) {
+            try {
+                final long parseStart = Metrics.ENABLED ? System.nanoTime() : 0;
+                final Board board = readBoard(inputPath);
+                final int numberOfPieces = board.getPiecesNumber();
+                if (Metrics.ENABLED) Metrics.recordPhase(Metrics.Phase.PARSE, System.nanoTime() - parseStart);
+
+                final long evaluateStart = Metrics.ENABLED ? System.nanoTime() : 0;
+
+                // Calculating moves and captures of all pieces at once.
+                // Large boards are evaluated in parallel if there are several cores,
+                // both ways keep the order of input.
+                // Boards of the batch are already evaluated in parallel,
+                // so they share the transposition table instead
+
+                final BoardCounts counts =
+                        transpositions != null ?
+                                board.computeAllCounts(transpositions) :
+                                numberOfPieces > Board.PARALLEL_TASK_SIZE && ForkJoinPool.getCommonPoolParallelism() > 1 ?
+                                        board.computeAllCountsParallel() :
+                                        board.computeAllCounts();
+
+                if (Metrics.ENABLED) Metrics.recordPhase(Metrics.Phase.EVALUATE, System.nanoTime() - evaluateStart);
+                final long writeStart = Metrics.ENABLED ? System.nanoTime() : 0;
 
-    public static void main(final String[] args) throws IOException {
-        try (final PrintWriter writer = new PrintWriter(new FileWriter("output.txt"))) {
-            try (final BufferedReader reader = new BufferedReader(new FileReader("input.txt"))) {
-                // Reading board size and checking if it is in bounds
-                // Throwing exception otherwise
+                // Printing moves and captures info of every piece
+                for (int i = 0; i < numberOfPieces; ++i)
+                    writer.printf("%d %d\n", counts.moves[i], counts.captures[i]);
 
-                final int boardSize = readIntOrThrow(
-                        reader,
-                        it -> it >= Board.MIN_LENGTH && it <= Board.MAX_LENGTH,
-                        new InvalidBoardSizeException()
-                );
+                writer.flush();
+                if (Metrics.ENABLED) Metrics.recordPhase(Metrics.Phase.WRITE, System.nanoTime() - writeStart);
 
-                // Creating a chess board
-                chessBoard = new Board(boardSize);
+                return board;
+            } catch (final IOException e) {
+                // If there is an IO error, printing invalid input error
+                writer.println(new InvalidInputException().getMessage());
+            } catch (final Exception e) {
+                // If there is another error, printing its message
+                writer.println(e.getMessage());
+            }
+        }
 
-                // Calculating board area to check if number of pieces is in bounds
-                final int boardArea = boardSize * boardSize;
+        return null;
+    }
 
-                // Reading the number of pieces and checking if it is in bounds
-                // Throwing exception otherwise
+    /**
+     * Evaluates many boards in one launch, so JVM startup and warm-up are paid once.
+     * Usage: `batch <directory|manifest> [concurrency]`.
+     * Every file of the directory (or every path in the manifest,
+     * relative to the manifest's directory) is an input, its result is written
+     * next to it with `.out` suffix. Boards are evaluated on virtual threads
+     * if the runtime supports them (on the fixed pool otherwise),
+     * at most `concurrency` boards at once (number of cores by default).
+     * Throughput and latencies are printed at the end
+     */
 
-                final int numberOfPieces = readIntOrThrow(
-                        reader,
-                        it -> it >= MIN_NUMBER_OF_PIECES && it <= boardArea,
-                        new InvalidNumberOfPiecesException()
-                );
+    private static void runBatch(final String[] args) {
+        if (args.length < 2) {
+            System.out.println(new InvalidInputException().getMessage());
+            return;
+        }
 
-                // Checking if there are only 2 kings: black and white
-                boolean isWhiteKingPresent = false, isBlackKingPresent = false;
+        final int concurrency;
 
-                // Storing pieces into array to improve the performance of board
-                // (This way we can use HashMap instead of LinkedHashMap)
-                final ChessPiece[] pieces = new ChessPiece[numberOfPieces];
+        try {
+            concurrency = args.length > 2 ?
+                    Integer.parseInt(args[2]) :
+                    Runtime.getRuntime().availableProcessors();
+        } catch (final NumberFormatException e) {
+            System.out.println(new InvalidInputException().getMessage());
+            return;
+        }
 
-                // Reading and parsing pieces, storing in both chess board and array
-                // Throwing exceptions if there are some errors
+        if (concurrency < 1) {
+            System.out.println(new InvalidInputException().getMessage());
+            return;
+        }
 
-                for (int i = 0; i < numberOfPieces; ++i) {
-                    final String[] inp = reader.readLine().split(" ");
+        final List<Path> inputs;
 
-                    if (inp.length != 4)
-                        throw new InvalidInputException();
+        try {
+            inputs = batchInputs(Paths.get(args[1]));
+        } catch (final IOException e) {
+            // If the directory or the manifest can't be read, printing invalid input error
+            System.out.println(new InvalidInputException().getMessage());
+            return;
+        }
+        final long[] latencies = new long[inputs.size()];
+        final Semaphore permits = new Semaphore(concurrency);
+        final TranspositionTable transpositions = new TranspositionTable(BATCH_CACHED_PIECES);
+        final ExecutorService executor = newBatchExecutor(concurrency);
+        final long start = System.nanoTime();
 
-                    final PieceColor color = PieceColor.parseOrThrow(inp[1]);
+        try {
+            for (int i = 0; i < inputs.size(); ++i) {
+                final int index = i;
+                final Path input = inputs.get(i);
+
+                permits.acquireUninterruptibly();
+
+                executor.execute(() -> {
+                    final long boardStart = System.nanoTime();
+
+                    try {
+                        solve(input.toString(), input + ".out", transpositions);
+                    } catch (final IOException e) {
+                        System.err.println(input + ": " + e.getMessage());
+                    } finally {
+                        latencies[index] = System.nanoTime() - boardStart;
+                        permits.release();
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+        }
 
-                    final int x = parseIntOrThrow(
-                            inp[2],
-                            it -> it >= 1 && it <= boardSize,
-                            new InvalidPiecePositionException()
-                    );
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
 
-                    final int y = parseIntOrThrow(
-                            inp[3],
-                            it -> it >= 1 && it <= boardSize,
-                            new InvalidPiecePositionException()
-                    );
+        final long nanos = System.nanoTime() - start;
+        Arrays.sort(latencies);
 
-                    final ChessPiece piece = ChessPiece.parseOrThrow(
-                            inp[0],
-                            new PiecePosition(x, y),
-                            color
-                    );
+        System.out.printf("Boards: %d\n", inputs.size());
+        System.out.printf("Time: %d ms\n", nanos / 1_000_000);
+        System.out.printf("Throughput: %.1f boards/s\n", nanos == 0 ? 0.0 : inputs.size() * 1e9 / nanos);
+        System.out.printf("p50 latency: %.3f ms\n", percentile(latencies, 50) / 1e6);
+        System.out.printf("p99 latency: %.3f ms\n", percentile(latencies, 99) / 1e6);
+        System.out.printf("Transpositions: %d hits, %d misses\n", transpositions.getHits(), transpositions.getMisses());
+    }
 
-                    // Check the King condition
-                    // If there is already one king with same color, throw exception
-                    // Otherwise change the particular flag
-
-                    if (piece instanceof King) {
-                        if (piece.getColor() == PieceColor.BLACK) {
-                            if (isBlackKingPresent) throw new InvalidGivenKingsException();
-                            isBlackKingPresent = true;
-                        } else {
-                            if (isWhiteKingPresent) throw new InvalidGivenKingsException();
-                            isWhiteKingPresent = true;
-                        }
-                    }
+    /**
+     * Gets input files of the batch
+     * @param source directory with inputs or manifest with their paths
+     * @return regular files of the directory (except results) sorted by names
+     * or paths from the manifest in the same order
+     */
 
-                    // Store piece into board and array
-                    chessBoard.addPiece(piece);
-                    pieces[i] = piece;
-                }
+    private static List<Path> batchInputs(final Path source) throws IOException {
+        if (Files.isDirectory(source)) {
+            try (final Stream<Path> files = Files.list(source)) {
+                return files
+                        .filter(Files::isRegularFile)
+                        .filter(file -> !file.getFileName().toString().endsWith(".out"))
+                        .sorted()
+                        .collect(Collectors.toList());
+            }
+        }
 
-                // If it is not EOF, throw error
-                if (reader.read() != -1)
-                    throw new InvalidNumberOfPiecesException();
+        final Path directory = source.toAbsolutePath().getParent();
+        final List<Path> inputs = new ArrayList<>();
 
-                // Throwing error if there are not 2 kings with different colors
-                if (!isBlackKingPresent || !isWhiteKingPresent)
-                    throw new InvalidGivenKingsException();
+        for (final String line : Files.readAllLines(source))
+            if (!line.trim().isEmpty())
+                inputs.add(directory.resolve(line.trim()));
 
-                // Printing moves and captures info of every piece
-                for (final ChessPiece piece : pieces)
-                    writer.printf(
-                            "%d %d\n",
-                            chessBoard.getPiecePossibleMovesCount(piece),
-                            chessBoard.getPiecePossibleCapturesCount(piece)
-                    );
-            } catch (final IOException e) {
-                // If there is an IO error, printing invalid input error
-                writer.println(new InvalidInputException().getMessage());
-            } catch (final Exception e) {
-                // If there is another error, printing its message
-                writer.println(e.getMessage());
-            }
-        }
+        return inputs;
     }
 
-    @Override
-    public String toString() { return chessBoard.toString(); }
-}
+    /**
+     * Creates executor with virtual thread per task if the runtime supports them.
+     * It is looked up reflectively, so the program still runs on older JDKs
+     * with the fixed pool of `concurrency` threads
+     */
 
-/** Represents piece position on board */
+    private static ExecutorService newBatchExecutor(final int concurrency) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (final ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(concurrency);
+        }
+    }
 
-final class PiecePosition {
-    /** Column's number */
-    private final int x;
+    /** Gets percentile of sorted values (nearest-rank method) */
 
-    /** Row's number */
-    private final int y;
+    private static long percentile(final long[] sorted, final int percent) {
+        if (sorted.length == 0) return 0;
+        final int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
 
     /**
-     * Constructs position from given coordinates
-     * @param onX column's number
-     * @param onY row's number
+     * Counts perft nodes of the board from input.txt and prints them with throughput.
+     * Usage: `perft <depth> [White|Black]`, white moves first by default
      */
 
-    public PiecePosition(final int onX, final int onY) {
-        x = onX;
-        y = onY;
+    private static void runPerft(final String[] args) throws IOException {
+        try {
+            final int depth = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+            final PieceColor side = args.length > 2 ? PieceColor.parse(args[2]) : PieceColor.WHITE;
+
+            if (depth < 0 || side == null) {
+                System.out.println(new InvalidInputException().getMessage());
+                return;
+            }
+
+            final Perft.Result result = Perft.run(readBoard("input.txt"), side, depth);
+            System.out.printf("Nodes: %d\n", result.nodes);
+            System.out.printf("Time: %d ms\n", result.nanos / 1_000_000);
+            System.out.printf("NPS: %d\n", result.getNodesPerSecond());
+        } catch (final IOException | NumberFormatException e) {
+            System.out.println(new InvalidInputException().getMessage());
+        } catch (final ChessException e) {
+            System.out.println(e.getMessage());
+        }
     }
 
     /**
-     * Does exactly what it should do.
-     * BTW, completely useless cause it's final
+     * Prints aggregates of the board as JSON: total moves and captures
+     * by colors and types and the most capturing piece.
+     * Usage: `summary [input]`, input.txt by default
+     * @see CountColumns
      */
 
-    public int getX() { return x; }
+    private static void runSummary(final String[] args) throws IOException {
+        try {
+            final Board board = readBoard(args.length > 1 ? args[1] : "input.txt");
+            System.out.println(CountColumns.of(board, board.computeAllCounts()).toJson());
+        } catch (final IOException e) {
+            System.out.println(new InvalidInputException().getMessage());
+        } catch (final ChessException e) {
+            System.out.println(e.getMessage());
+        }
+    }
 
     /**
-     * Does exactly what it should do.
-     * BTW, completely useless cause it's final
+     * Converts the text board into the binary snapshot.
+     * Usage: `convert <input> <snapshot>`
      */
 
-    public int getY() { return y; }
+    private static void runConvert(final String[] args) throws IOException {
+        if (args.length < 3) {
+            System.out.println(new InvalidInputException().getMessage());
+            return;
+        }
+
+        try (final MappedInput input = MappedInput.open(args[1])) {
+            BoardSnapshot.write(readBoard(input), args[2]);
+        } catch (final IOException e) {
+            System.out.println(new InvalidInputException().getMessage());
+        } catch (final ChessException e) {
+            System.out.println(e.getMessage());
+        }
+    }
 
     /**
-     * Checks if position is correct (in range 1..boardSize)
-     * @param boardSize board size or maximum bound of x and x
-     * @return true if position is valid
+     * Reads and validates the board from either
+     * the binary snapshot or the text input
+     * @param path input file
+     * @return board with pieces in the order of input
+     * @throws IOException if input can't be read
+     * @throws ChessException if input is not valid
+     * @see BoardSnapshot
      */
 
-    public boolean isValid(final int boardSize) { return x >= 1 && x <= boardSize && y >= 1 && y <= boardSize; }
-
-    /** @return PiecePosition{x, y} */
+    private static Board readBoard(final String path) throws IOException, ChessException {
+        if (BoardSnapshot.isSnapshot(path))
+            return BoardSnapshot.read(path);
 
-    @Override
-    public String toString() { return String.format("PiecePosition{%d, %d}", x, y); }
+        try (final MappedInput input = MappedInput.open(path)) {
+            return readBoard(input);
+        }
+    }
 
     /**
-     * Checks an equality of two objects.
-     * @param o object to compare
-     * @return false if object is not {@link PiecePosition},
-     * otherwise checks coordinates of two positions
+     * Reads and validates the board
+     * @param input input with board size, number of pieces and pieces themselves
+     * @return board with pieces in the order of input
+     * @throws IOException if input can't be read
+     * @throws ChessException if input is not valid
      */
 
-    @Override
-    public boolean equals(final Object o) {
-        if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
-        PiecePosition position = (PiecePosition) o;
-        return x == position.x && y == position.y;
-    }
+    private static Board readBoard(final MappedInput input) throws IOException, ChessException {
+        // Exceptions are the same for all lines, so there is no need to create them every time
+        final InvalidPiecePositionException invalidPosition = new InvalidPiecePositionException();
 
-    /** Gets hash code for the position */
+        // Reading board size and checking if it is in bounds
+        // Throwing exception otherwise
+
+        final int boardSize = input.readIntOrThrow(
+                Board.MIN_LENGTH,
+                Board.MAX_LENGTH,
+                new InvalidBoardSizeException()
+        );
+
+        // Calculating board area to check if number of pieces is in bounds
+        final int boardArea = (int) Math.min((long) boardSize * boardSize, Integer.MAX_VALUE);
+
+        // Reading the number of pieces and checking if it is in bounds
+        // Throwing exception otherwise
+
+        final int numberOfPieces = input.readIntOrThrow(
+                MIN_NUMBER_OF_PIECES,
+                boardArea,
+                new InvalidNumberOfPiecesException()
+        );
+
+        // Creating a chess board: dense grid for small or crowded boards,
+        // sparse one (with memory proportional to the number of pieces) otherwise
+        final Board board = new Board(boardSize, Board.shouldBeSparse(boardSize, numberOfPieces));
+
+        // Checking if there are only 2 kings: black and white
+        boolean isWhiteKingPresent = false, isBlackKingPresent = false;
+
+        // Reading and parsing pieces, storing them in the chess board
+        // (board keeps the order of input)
+        // Throwing exceptions if there are some errors
+
+        for (int i = 0; i < numberOfPieces; ++i) {
+            // Input ended before all pieces were read
+            if (!input.nextLine())
+                throw new InvalidNumberOfPiecesException();
+
+            if (input.splitLine() != 4)
+                throw new InvalidInputException();
+
+            final PieceColor color = input.tokenColorOrThrow(1);
+            final int x = input.tokenIntOrThrow(2, 1, boardSize, invalidPosition);
+            final int y = input.tokenIntOrThrow(3, 1, boardSize, invalidPosition);
+            final PieceType type = input.tokenTypeOrThrow(0);
+
+            // Check the King condition
+            // If there is already one king with same color, throw exception
+            // Otherwise change the particular flag
+
+            if (type == PieceType.KING) {
+                if (color == PieceColor.BLACK) {
+                    if (isBlackKingPresent) throw new InvalidGivenKingsException();
+                    isBlackKingPresent = true;
+                } else {
+                    if (isWhiteKingPresent) throw new InvalidGivenKingsException();
+                    isWhiteKingPresent = true;
+                }
+            }
+
+            // Store piece into board
+            board.addPiece(type.create(new PiecePosition(x, y), color));
+        }
+
+        // If it is not EOF, throw error
+        if (!input.isEnd())
+            throw new InvalidNumberOfPiecesException();
+
+        // Throwing error if there are not 2 kings with different colors
+        if (!isBlackKingPresent || !isWhiteKingPresent)
+            throw new InvalidGivenKingsException();
+
+        return board;
+    }
 
     @Override
-    public int hashCode() { return Objects.hash(x, y); }
+    public String toString() { return chessBoard.toString(); }
 }
 
 /**
- * Represent the colors for chess pieces
- * (only black and white)
+ * Reads input file that is mapped into memory.
+ * Lines and tokens are parsed directly from bytes,
+ * so neither strings nor arrays are created for every line.
+ * Lines are separated as with {@link BufferedReader#readLine()}
+ * and tokens are split as with {@link String#split(String)} by single space
  */
 
-enum PieceColor {
-    WHITE, BLACK;
+final class MappedInput implements Closeable {
 
-    /**
-     * Parses string and gets {@link PieceColor}
-     * @param str string to parse
-     * @return null if str does not match `White` or `Black`.
-     * Otherwise, returns {@link PieceColor#BLACK} or {@link PieceColor#WHITE}
-     */
+    /** Maximum number of tokens that is tracked in one line */
+    private static final int MAX_TOKENS = 4;
 
-    public static PieceColor parse(final String str) {
-        if (str.equals("White")) return WHITE;
-        if (str.equals("Black")) return BLACK;
-        return null;
+    /** Returned by {@link MappedInput#parseInt(int, int)} if bytes are not an integer */
+    private static final long NOT_AN_INT = Long.MIN_VALUE;
+
+    private final FileChannel channel;
+
+    /** Whole file */
+    private final MappedByteBuffer buffer;
+
+    /** Position of the next unread byte */
+    private int position = 0;
+
+    /** Bounds of the current line [lineStart..lineEnd) */
+    private int lineStart, lineEnd;
+
+    /** Bounds of the tokens of the current line [tokenStarts[i]..tokenEnds[i]) */
+    private final int[] tokenStarts = new int[MAX_TOKENS];
+    private final int[] tokenEnds = new int[MAX_TOKENS];
+
+    private MappedInput(final FileChannel channel) throws IOException {
+        this.channel = channel;
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
     }
 
     /**
-     * Same as {@link PieceColor#parse(String)},
-     * but throws exceptions on error
-     * @param str str to parse
-     * @return {@link PieceColor#BLACK} or {@link PieceColor#WHITE}
-     * @throws InvalidPieceColorException if str does not match `White` or `Black`
+     * Opens file and maps it into memory
+     * @param path path to the file
+     * @throws IOException if file can't be opened or mapped
      */
 
-    static PieceColor parseOrThrow(final String str) throws InvalidPieceColorException {
-        final PieceColor res = parse(str);
-        if (res != null) return res;
-        throw new InvalidPieceColorException();
-    }
-}
+    static MappedInput open(final String path) throws IOException {
+        final FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
 
-final class Utils {
+        try {
+            return new MappedInput(channel);
+        } catch (final IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
 
     /**
-     * Check if given params doesn't
-     * satisfy the equation of the line (y = kx + b)
-     * @return true if it is not the equation of the line
+     * Moves to the next line.
+     * Line is terminated by either '\n', '\r' or "\r\n"
+     * @return false if there are no lines left
      */
 
-    static boolean notBelongsToLineEq(
-            final int x,
-            final int y,
-            final int k,
-            final int b
-    ) { return y != k * x + b; }
-}
-
-/** Function with two args */
+    boolean nextLine() {
+        final int limit = buffer.limit();
+        if (position >= limit) return false;
 
-@FunctionalInterface
-interface Function2Args<F, S, R> {
-    R apply(final F firstArg, final S secondArg);
-}
+        lineStart = position;
 
-/**
- * Represents the move state for {@link LongDistanceMovement}.
- * It is used to show the longest possible move in the direction
- * @see LongDistanceMovement
- */
+        while (position < limit) {
+            final byte b = buffer.get(position);
+            if (b == '\n' || b == '\r') break;
+            ++position;
+        }
 
-interface MoveState {
+        lineEnd = position;
 
-    /**
-     * Shows that there are not other pieces,
-     * so it is possible to move to the border of the board
-     */
+        if (position < limit && buffer.get(position++) == '\r' &&
+                position < limit && buffer.get(position) == '\n')
+            ++position;
 
-    class Empty implements MoveState {
+        return true;
+    }
 
-        /** Distance to the border */
-        final int distance;
+    /** @return true if there are no unread bytes left */
 
-        /** @param distance distance to the border */
-        Empty(final int distance) { this.distance = distance; }
-    }
+    boolean isEnd() { return position >= buffer.limit(); }
 
     /**
-     * Shows that there is a piece on the way,
-     * so it is possible to move not further than to this piece
-     * @see SameColor
-     * @see DifferentColor
+     * Splits the current line by single spaces,
+     * trailing empty tokens are removed
+     * @return number of tokens in the line
+     * (only the first {@link MappedInput#MAX_TOKENS} are tracked)
      */
 
-    abstract class NonEmpty implements MoveState {
-        /** Position of the first met piece on the way */
-        final PiecePosition position;
+    int splitLine() {
+        int end = lineEnd;
 
-        protected NonEmpty(final PiecePosition position) { this.position = position; }
+        // Removing trailing empty tokens
+        while (end > lineStart && buffer.get(end - 1) == ' ')
+            --end;
 
-        /**
-         * Shows that there is a piece with same color on the way,
-         * so the maximum move length is distance - 1
-         */
+        // Empty line is the only empty token,
+        // while line of spaces has no tokens at all
 
-        static final class SameColor extends NonEmpty {
-            SameColor(final PiecePosition position) { super(position); }
-        }
+        if (end == lineStart)
+            return lineEnd == lineStart ? 1 : 0;
 
-        /**
-         * Shows that there is a piece with another color on the way,
-         * so the maximum move length is distance between them
-         */
+        int tokens = 0;
+        int tokenStart = lineStart;
 
-        static final class DifferentColor extends NonEmpty {
-            DifferentColor(final PiecePosition position) { super(position); }
-        }
-    }
-}
+        for (int i = lineStart; i <= end; ++i) {
+            if (i != end && buffer.get(i) != ' ')
+                continue;
 
-/** Ancestor for all movements */
-interface Movement {}
+            if (tokens < MAX_TOKENS) {
+                tokenStarts[tokens] = tokenStart;
+                tokenEnds[tokens] = i;
+            }
 
-/**
- * Used to represent all movements
- * with not compile-time known move length.
- * Provides a specific algorithm to count the number of moves and captures
- * @see BishopMovement
- * @see RookMovement
- */
+            ++tokens;
+            tokenStart = i + 1;
+        }
 
-interface LongDistanceMovement extends Movement {
+        return tokens;
+    }
 
-    /** Gets {@link MoveState}s for all possible ways  */
+    /**
+     * Reads line and parses it as {@link Integer} in range [min..max]
+     * @param exception exception to throw if something is wrong
+     * @throws ChessException there are no lines left,
+     * line is not an integer or it is not in the range
+     * @return parsed integer
+     */
 
-    @FunctionalInterface
-    interface GetFirstMetPositions {
-        MoveState[] apply(
-                final PiecePosition position,
-                final PieceColor color,
-                final Map<String, ChessPiece> positions,
-                final int boardSize
-        );
+    int readIntOrThrow(final int min, final int max, final ChessException exception) throws ChessException {
+        if (!nextLine()) throw exception;
+        return intOrThrow(lineStart, lineEnd, min, max, exception);
     }
 
     /**
-     * Gets the number of all possible moves (including captures)
-     * @param position current piece's position
-     * @param color piece's color
-     * @param positions board
-     * @param boardSize number of rows / columns of the board
-     * @param calcDistanceExcludingColor how to find the distance
-     * if there is a piece on the way (color doesn't matter)
-     * @param getFirstMetPositions how to get first positions
-     * of pieces on the way (if there are any)
-     * @return the number of all possible moves
-     * @see GetFirstMetPositions
+     * Parses token of the current line as {@link Integer} in range [min..max]
+     * @param token number of the token
+     * @param exception exception to throw if something is wrong
+     * @throws ChessException token is not an integer or it is not in the range
+     * @return parsed integer
      */
 
-    default int getLongDistanceMovesCount(
-            final PiecePosition position,
-            final PieceColor color,
-            final Map<String, ChessPiece> positions,
-            final int boardSize,
-            final Function<PiecePosition, Integer> calcDistanceExcludingColor,
-            final GetFirstMetPositions getFirstMetPositions
-    ) {
-        return Arrays
-                .stream(getFirstMetPositions.apply(position, color, positions, boardSize))
-                .map(moveState -> {
-                    if (moveState instanceof MoveState.NonEmpty) {
-                        final MoveState.NonEmpty nonEmpty = (MoveState.NonEmpty) moveState;
-                        return calcDistanceExcludingColor.apply(nonEmpty.position) -
-                                (nonEmpty instanceof MoveState.NonEmpty.SameColor ? 1 : 0);
-                    } else {
-                        final MoveState.Empty empty = (MoveState.Empty) moveState;
-                        return empty.distance;
-                    }
-                })
-                .reduce(Integer::sum)
-                .orElse(0);
+    int tokenIntOrThrow(
+            final int token,
+            final int min,
+            final int max,
+            final ChessException exception
+    ) throws ChessException {
+        return intOrThrow(tokenStarts[token], tokenEnds[token], min, max, exception);
     }
 
     /**
-     * Gets the number of all possible captures
-     * @param position current piece's position
-     * @param color piece's color
-     * @param positions board
-     * @param boardSize number of rows / columns of the board
-     * @param getFirstMetPositions how to get first positions
-     * of pieces on the way (if there are any)
-     * @return the number of all possible captures
-     * @see GetFirstMetPositions
+     * Parses token of the current line as {@link PieceColor}
+     * @param token number of the token
+     * @throws InvalidPieceColorException if token does not match `White` or `Black`
      */
 
-    default int getLongDistanceCapturesCount(
-            final PiecePosition position,
-            final PieceColor color,
-            final Map<String, ChessPiece> positions,
-            final int boardSize,
-            final GetFirstMetPositions getFirstMetPositions
-    ) {
-        return (int) Arrays
-                .stream(getFirstMetPositions.apply(position, color, positions, boardSize))
-                .filter(moveState -> moveState instanceof MoveState.NonEmpty.DifferentColor)
-                .count();
+    PieceColor tokenColorOrThrow(final int token) throws InvalidPieceColorException {
+        for (final PieceColor color : PieceColor.values())
+            if (tokenEquals(token, color.title))
+                return color;
+        throw new InvalidPieceColorException();
+    }
+
+    /**
+     * Parses token of the current line as {@link PieceType}
+     * @param token number of the token
+     * @throws InvalidPieceNameException if token is not in set:
+     * {`Pawn`, `King`, `Knight`, `Rook`, `Queen`, `Bishop`}
+     */
+
+    PieceType tokenTypeOrThrow(final int token) throws InvalidPieceNameException {
+        for (final PieceType type : PieceType.values())
+            if (tokenEquals(token, type.title))
+                return type;
+        throw new InvalidPieceNameException();
+    }
+
+    @Override
+    public void close() throws IOException { channel.close(); }
+
+    /** Compares token of the current line with ASCII string */
+
+    private boolean tokenEquals(final int token, final String str) {
+        final int start = tokenStarts[token];
+        if (tokenEnds[token] - start != str.length()) return false;
+
+        for (int i = 0; i < str.length(); ++i)
+            if (buffer.get(start + i) != str.charAt(i))
+                return false;
+
+        return true;
+    }
+
+    /** Parses bytes [from..to) as integer in range [min..max] or throws exception */
+
+    private int intOrThrow(
+            final int from,
+            final int to,
+            final int min,
+            final int max,
+            final ChessException exception
+    ) throws ChessException {
+        final long integer = parseInt(from, to);
+        if (integer == NOT_AN_INT || integer < min || integer > max) throw exception;
+        return (int) integer;
+    }
+
+    /**
+     * Parses bytes [from..to) as with {@link Integer#parseInt(String)}.
+     * Non-ASCII bytes may be digits of other scripts,
+     * so such tokens are decoded and parsed by the JDK
+     * @return parsed integer or {@link MappedInput#NOT_AN_INT}
+     */
+
+    private long parseInt(final int from, final int to) {
+        if (from == to) return NOT_AN_INT;
+
+        final byte first = buffer.get(from);
+        final boolean isNegative = first == '-';
+        int i = first == '-' || first == '+' ? from + 1 : from;
+
+        if (i == to) return NOT_AN_INT;
+
+        long integer = 0;
+
+        for (; i < to; ++i) {
+            final byte b = buffer.get(i);
+
+            if (b < 0)
+                return parseDecodedInt(from, to);
+
+            if (b < '0' || b > '9')
+                return NOT_AN_INT;
+
+            integer = integer * 10 + (b - '0');
+
+            if (integer > Integer.MAX_VALUE + 1L)
+                return NOT_AN_INT;
+        }
+
+        if (isNegative) integer = -integer;
+        return integer > Integer.MAX_VALUE ? NOT_AN_INT : integer;
+    }
+
+    /** Decodes bytes [from..to) as {@link FileReader} does and parses them with the JDK */
+
+    private long parseDecodedInt(final int from, final int to) {
+        final byte[] bytes = new byte[to - from];
+        buffer.get(from, bytes);
+
+        try {
+            return Integer.parseInt(new String(bytes, Charset.defaultCharset()));
+        } catch (final NumberFormatException e) {
+            return NOT_AN_INT;
+        }
     }
 }
 
-/** {@link LongDistanceMovement} with diagonal moves */
+/**
+ * Versioned binary snapshot of the board:
+ * header with magic, version, board size and number of pieces (4 ints)
+ * and one long record per piece in the order of addition,
+ * where type, color, x and y are packed together.
+ * Snapshots are read and written through memory-mapped files,
+ * so there is neither text parsing nor intermediate buffers
+ */
 
-interface BishopMovement extends LongDistanceMovement {
-    class Ext {
+final class BoardSnapshot {
 
-        /**
-         * Gets {@link MoveState}s for all diagonals
-         * @param position current piece's position
-         * @param color piece's color
-         * @param positions board
-         * @param boardSize number of rows / columns of the board
-         * @return all {@link MoveState}s for 4 diagonals
-         */
+    /** `CHSB` in ASCII */
+    static final int MAGIC = 0x43485342;
 
-        static MoveState[] getFirstMetPositions(
-                final PiecePosition position,
-                final PieceColor color,
-                final Map<String, ChessPiece> positions,
-                final int boardSize
-        ) {
-            final int x = position.getX();
-            final int y = position.getY();
+    static final int VERSION = 1;
 
-            // --------------------------------------------------------
-            // Equation of line for diagonal /
-            // --------------------------------------------------------
-            // y = kx + b
-            // y+1 = k(x+1) + b
-            // --------------------------------------------------------
-            // kx + b + 1 = kx + k + b
-            // k = 1
-            // b = y - x
-            // --------------------------------------------------------
-            // Y = X + (y-x)
-            // --------------------------------------------------------
+    private static final int HEADER_BYTES = 4 * Integer.BYTES;
+    private static final int RECORD_BYTES = Long.BYTES;
 
-            final int k1 = 1;
-            final int b1 = y - x;
+    private static final int COORDINATE_BITS = 20;
+    private static final long COORDINATE_MASK = (1L << COORDINATE_BITS) - 1;
+    private static final int X_SHIFT = COORDINATE_BITS;
+    private static final int COLOR_SHIFT = 2 * COORDINATE_BITS;
+    private static final int TYPE_SHIFT = COLOR_SHIFT + 1;
 
-            // --------------------------------------------------------
-            // Equation of line for diagonal \
-            // --------------------------------------------------------
-            // y = kx + b
-            // y-1 = k(x+1) + b
-            // --------------------------------------------------------
-            // kx + b - 1 = kx + k + b
-            // k = -1
-            // b = y + x
-            // --------------------------------------------------------
-            // Y = -X + (y+x)
-            // --------------------------------------------------------
+    private BoardSnapshot() {}
+
+    /**
+     * Checks if the file starts with {@link BoardSnapshot#MAGIC}
+     * @throws IOException if file can't be read
+     */
 
-            final int k2 = -1;
-            final int b2 = y + x;
+    static boolean isSnapshot(final String path) throws IOException {
+        try (final FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            final ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES);
 
-            // 0: x > to y > (up-right)
-            // 1: x > to y < (down-right)
-            // 2: x < to y > (up-left)
-            // 3: x < to y < (down-left)
+            while (magic.hasRemaining())
+                if (channel.read(magic) < 0)
+                    return false;
+
+            return magic.getInt(0) == MAGIC;
+        }
+    }
+
+    /**
+     * Writes all pieces of the board in the order of addition.
+     * Slots of removed pieces are skipped
+     * @param board board to write
+     * @param path snapshot file, it is overwritten
+     * @throws IOException if file can't be written
+     */
+
+    static void write(final Board board, final String path) throws IOException {
+        int piecesNumber = 0;
+
+        for (int i = 0; i < board.getPiecesNumber(); ++i)
+            if (board.getPiece(i) != null)
+                ++piecesNumber;
+
+        try (final FileChannel channel = FileChannel.open(
+                Paths.get(path),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE
+        )) {
+            final MappedByteBuffer buffer = channel.map(
+                    FileChannel.MapMode.READ_WRITE,
+                    0,
+                    HEADER_BYTES + (long) RECORD_BYTES * piecesNumber
+            );
+
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(board.getSize());
+            buffer.putInt(piecesNumber);
+
+            for (int i = 0; i < board.getPiecesNumber(); ++i) {
+                final ChessPiece piece = board.getPiece(i);
+                if (piece != null) buffer.putLong(pack(piece));
+            }
+
+            buffer.force();
+        }
+    }
+
+    /**
+     * Reads the board, building its occupancy and lines straight from the mapped file.
+     * Board is validated as the text input
+     * @param path snapshot file
+     * @return board with pieces in the order of the snapshot
+     * @throws IOException if file can't be read
+     * @throws InvalidInputException if file is not a snapshot of the supported version
+     * @throws InvalidBoardSizeException if board size is not in [3..1000000]
+     * @throws InvalidNumberOfPiecesException if number of pieces is not in [2..boardArea]
+     * or it does not match the length of the file
+     * @throws InvalidPiecePositionException if piece is out of the board
+     * or its cell is already occupied
+     * @throws InvalidPieceNameException if piece's type is unknown
+     * @throws InvalidGivenKingsException if there are not 2 kings with different colors
+     */
+
+    static Board read(final String path) throws IOException, ChessException {
+        try (final FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            final long length = channel.size();
+
+            if (length < HEADER_BYTES)
+                throw new InvalidInputException();
+
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+                throw new InvalidInputException();
+
+            final int boardSize = buffer.getInt();
+
+            if (boardSize < Board.MIN_LENGTH || boardSize > Board.MAX_LENGTH)
+                throw new InvalidBoardSizeException();
+
+            final int piecesNumber = buffer.getInt();
+
+            if (piecesNumber < Main.MIN_NUMBER_OF_PIECES ||
+                    piecesNumber > (long) boardSize * boardSize ||
+                    length != HEADER_BYTES + (long) RECORD_BYTES * piecesNumber)
+                throw new InvalidNumberOfPiecesException();
+
+            final Board board = new Board(boardSize, Board.shouldBeSparse(boardSize, piecesNumber));
+            final PieceType[] types = PieceType.values();
+            final PieceColor[] colors = PieceColor.values();
+            final int[] kings = new int[colors.length];
+
+            for (int i = 0; i < piecesNumber; ++i) {
+                final long record = buffer.getLong();
+                final int x = (int) ((record >>> X_SHIFT) & COORDINATE_MASK);
+                final int y = (int) (record & COORDINATE_MASK);
+                final PieceColor color = colors[(int) ((record >>> COLOR_SHIFT) & 1)];
+                final long type = record >>> TYPE_SHIFT;
+
+                // Checked in the same order as the text input
+
+                if (x < 1 || x > boardSize || y < 1 || y > boardSize)
+                    throw new InvalidPiecePositionException();
+
+                if (type >= types.length)
+                    throw new InvalidPieceNameException();
+
+                if (types[(int) type] == PieceType.KING && ++kings[color.ordinal()] > 1)
+                    throw new InvalidGivenKingsException();
+
+                board.appendLoadedPiece(types[(int) type].create(new PiecePosition(x, y), color));
+            }
+
+            for (final int kingsNumber : kings)
+                if (kingsNumber != 1)
+                    throw new InvalidGivenKingsException();
+
+            board.finishLoading();
+            return board;
+        }
+    }
+
+    /** Packs type, color and position of the piece into the record */
+
+    private static long pack(final ChessPiece piece) {
+        final PiecePosition position = piece.getPosition();
+
+        return ((long) piece.getType().ordinal() << TYPE_SHIFT) |
+                ((long) piece.getColor().ordinal() << COLOR_SHIFT) |
+                ((long) position.getX() << X_SHIFT) |
+                position.getY();
+    }
+}
+
+/** Represents piece position on board */
+
+final class PiecePosition {
+    /** Column's number */
+    private final int x;
+
+    /** Row's number */
+    private final int y;
+
+    /**
+     * Constructs position from given coordinates
+     * @param onX column's number
+     * @param onY row's number
+     */
+
+    public PiecePosition(final int onX, final int onY) {
+        x = onX;
+        y = onY;
+    }
+
+    /**
+     * Does exactly what it should do.
+     * BTW, completely useless cause it's final
+     */
+
+    public int getX() { return x; }
+
+    /**
+     * Does exactly what it should do.
+     * BTW, completely useless cause it's final
+     */
+
+    public int getY() { return y; }
+
+    /**
+     * Checks if position is correct (in range 1..boardSize)
+     * @param boardSize board size or maximum bound of x and x
+     * @return true if position is valid
+     */
+
+    public boolean isValid(final int boardSize) { return x >= 1 && x <= boardSize && y >= 1 && y <= boardSize; }
+
+    /** @return PiecePosition{x, y} */
+
+    @Override
+    public String toString() { return String.format("PiecePosition{%d, %d}", x, y); }
+
+    /**
+     * Checks an equality of two objects.
+     * @param o object to compare
+     * @return false if object is not {@link PiecePosition},
+     * otherwise checks coordinates of two positions
+     */
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        PiecePosition position = (PiecePosition) o;
+        return x == position.x && y == position.y;
+    }
+
+    /** Gets hash code for the position */
+
+    @Override
+    public int hashCode() { return Objects.hash(x, y); }
+}
+
+/**
+ * Represent the colors for chess pieces
+ * (only black and white)
+ */
+
+enum PieceColor {
+    WHITE("White"), BLACK("Black");
+
+    /** Color's name in the input */
+    final String title;
+
+    PieceColor(final String title) { this.title = title; }
+
+    /**
+     * Parses string and gets {@link PieceColor}
+     * @param str string to parse
+     * @return null if str does not match `White` or `Black`.
+     * Otherwise, returns {@link PieceColor#BLACK} or {@link PieceColor#WHITE}
+     */
+
+    public static PieceColor parse(final String str) {
+        if (str.equals(WHITE.title)) return WHITE;
+        if (str.equals(BLACK.title)) return BLACK;
+        return null;
+    }
+
+    /**
+     * Same as {@link PieceColor#parse(String)},
+     * but throws exceptions on error
+     * @param str str to parse
+     * @return {@link PieceColor#BLACK} or {@link PieceColor#WHITE}
+     * @throws InvalidPieceColorException if str does not match `White` or `Black`
+     */
+
+    static PieceColor parseOrThrow(final String str) throws InvalidPieceColorException {
+        final PieceColor res = parse(str);
+        if (res != null) return res;
+        throw new InvalidPieceColorException();
+    }
+}
+
+/** Represents all types of chess pieces */
+
+enum PieceType {
+    PAWN("Pawn"), KING("King"), KNIGHT("Knight"), ROOK("Rook"), QUEEN("Queen"), BISHOP("Bishop");
+
+    /** Type's name in the input */
+    final String title;
+
+    PieceType(final String title) { this.title = title; }
+
+    /**
+     * Parses string and gets {@link PieceType}
+     * @param str string to parse
+     * @return null if str is not in set:
+     * {`Pawn`, `King`, `Knight`, `Rook`, `Queen`, `Bishop`}
+     */
+
+    public static PieceType parse(final String str) {
+        for (final PieceType type : values())
+            if (str.equals(type.title))
+                return type;
+        return null;
+    }
+
+    /**
+     * Constructs the {@link ChessPiece} of this type
+     * @param position position of the constructable piece
+     * @param color color of the constructable piece
+     */
+
+    ChessPiece create(final PiecePosition position, final PieceColor color) {
+        switch (this) {
+            case PAWN: return new Pawn(position, color);
+            case KING: return new King(position, color);
+            case KNIGHT: return new Knight(position, color);
+            case ROOK: return new Rook(position, color);
+            case QUEEN: return new Queen(position, color);
+            default: return new Bishop(position, color);
+        }
+    }
+}
+
+/**
+ * Represents the move state for {@link LongDistanceMovement}.
+ * It is used to show the longest possible move in the direction.
+ * State is packed into int as (distance << 2) | kind,
+ * so rays are reported without allocations
+ * @see LongDistanceMovement
+ */
+
+final class MoveState {
+
+    /**
+     * Shows that there are not other pieces,
+     * so it is possible to move to the border of the board
+     */
+
+    static final int EMPTY = 0;
+
+    /**
+     * Shows that there is a piece with same color on the way,
+     * so the maximum move length is distance - 1
+     */
+
+    static final int SAME_COLOR = 1;
+
+    /**
+     * Shows that there is a piece with another color on the way,
+     * so the maximum move length is distance between them
+     */
+
+    static final int DIFFERENT_COLOR = 2;
+
+    private static final int KIND_BITS = 2;
+    private static final int KIND_MASK = (1 << KIND_BITS) - 1;
+
+    private MoveState() {}
+
+    /**
+     * Packs the state
+     * @param kind {@link MoveState#EMPTY}, {@link MoveState#SAME_COLOR}
+     * or {@link MoveState#DIFFERENT_COLOR}
+     * @param distance distance to the border or to the first met piece
+     */
+
+    static int of(final int kind, final int distance) { return (distance << KIND_BITS) | kind; }
+
+    /** Gets kind of the packed state */
+
+    static int kind(final int state) { return state & KIND_MASK; }
+
+    /** Gets distance to the border or to the first met piece */
+
+    static int distance(final int state) { return state >>> KIND_BITS; }
+
+    /** Gets the number of moves (including capture) in the direction */
+
+    static int movesCount(final int state) { return distance(state) - (kind(state) == SAME_COLOR ? 1 : 0); }
+}
+
+/**
+ * Packs move into primitive long: column and row of the source cell (20 bits each),
+ * direction of the move (4 bits) and the number of steps (20 bits).
+ * Coordinates of 10^6 x 10^6 board need 80 bits for both cells,
+ * so the target is stored relative to the source, and the move doesn't fit into int
+ */
+
+final class Move {
+    private static final int COORDINATE_BITS = 20;
+    private static final int DIRECTION_BITS = 4;
+    private static final long COORDINATE_MASK = (1L << COORDINATE_BITS) - 1;
+    private static final long DIRECTION_MASK = (1L << DIRECTION_BITS) - 1;
+
+    private static final int DISTANCE_SHIFT = 0;
+    private static final int DIRECTION_SHIFT = COORDINATE_BITS;
+    private static final int FROM_Y_SHIFT = DIRECTION_SHIFT + DIRECTION_BITS;
+    private static final int FROM_X_SHIFT = FROM_Y_SHIFT + COORDINATE_BITS;
+
+    /** Column's steps of 8 rays (0..7) and 8 knight's jumps (8..15) */
+    private static final int[] DX = { 1, 1, 0, -1, -1, -1, 0, 1, 1, 2, 2, 1, -1, -2, -2, -1 };
+
+    /** Row's steps of 8 rays (0..7) and 8 knight's jumps (8..15) */
+    private static final int[] DY = { 0, 1, 1, 1, 0, -1, -1, -1, 2, 1, -1, -2, -2, -1, 1, 2 };
+
+    /** Directions by steps: (dx + 2) * 5 + (dy + 2) */
+    private static final byte[] DIRECTIONS = new byte[25];
+
+    static {
+        for (int direction = 0; direction < DX.length; ++direction)
+            DIRECTIONS[(DX[direction] + 2) * 5 + DY[direction] + 2] = (byte) direction;
+    }
+
+    private Move() {}
+
+    /**
+     * Packs the move from (fromX, fromY) to (toX, toY).
+     * Target must be either on one of 8 rays or on the knight's jump
+     */
+
+    static long of(final int fromX, final int fromY, final int toX, final int toY) {
+        final int dx = toX - fromX;
+        final int dy = toY - fromY;
+        final boolean isRay = dx == 0 || dy == 0 || Math.abs(dx) == Math.abs(dy);
+
+        // Rays are normalized to unit steps, jumps are taken as is
+
+        final int distance = isRay ? Math.max(Math.abs(dx), Math.abs(dy)) : 1;
+        final int stepX = isRay ? Integer.signum(dx) : dx;
+        final int stepY = isRay ? Integer.signum(dy) : dy;
+        final int direction = DIRECTIONS[(stepX + 2) * 5 + stepY + 2];
+
+        return ((long) fromX << FROM_X_SHIFT) |
+                ((long) fromY << FROM_Y_SHIFT) |
+                ((long) direction << DIRECTION_SHIFT) |
+                ((long) distance << DISTANCE_SHIFT);
+    }
+
+    /** Column of the source cell */
+
+    static int fromX(final long move) { return (int) ((move >>> FROM_X_SHIFT) & COORDINATE_MASK); }
+
+    /** Row of the source cell */
+
+    static int fromY(final long move) { return (int) ((move >>> FROM_Y_SHIFT) & COORDINATE_MASK); }
+
+    /** Column of the target cell */
+
+    static int toX(final long move) { return fromX(move) + DX[direction(move)] * distance(move); }
+
+    /** Row of the target cell */
+
+    static int toY(final long move) { return fromY(move) + DY[direction(move)] * distance(move); }
+
+    /** Move in form of `x y -> x y` */
+
+    static String toString(final long move) {
+        return fromX(move) + " " + fromY(move) + " -> " + toX(move) + " " + toY(move);
+    }
+
+    private static int direction(final long move) { return (int) ((move >>> DIRECTION_SHIFT) & DIRECTION_MASK); }
+
+    private static int distance(final long move) { return (int) ((move >>> DISTANCE_SHIFT) & COORDINATE_MASK); }
+}
+
+/**
+ * Growable buffer of packed {@link Move}s.
+ * It is cleared and filled again without allocations,
+ * so the same buffer is reused for every generation
+ */
+
+final class MoveList {
+    private long[] moves = new long[64];
+    private int size = 0;
+
+    /** Number of moves in the buffer */
+
+    int size() { return size; }
+
+    /** Gets move by its index */
+
+    long get(final int index) { return moves[index]; }
+
+    /** Replaces move by its index */
+
+    void set(final int index, final long move) { moves[index] = move; }
+
+    /** Appends move to the end of the buffer */
+
+    void add(final long move) {
+        if (size == moves.length) moves = Arrays.copyOf(moves, size * 2);
+        moves[size++] = move;
+    }
+
+    /** Drops all moves after the first `newSize` ones */
+
+    void truncate(final int newSize) { size = newSize; }
+
+    /** Removes all moves, keeping the capacity */
+
+    void clear() { size = 0; }
+}
+
+/** Ancestor for all movements */
+interface Movement {}
+
+/**
+ * Used to represent all movements
+ * with not compile-time known move length.
+ * Provides a specific algorithm to count the number of moves and captures
+ * @see BishopMovement
+ * @see RookMovement
+ */
+
+interface LongDistanceMovement extends Movement {
+
+    /** Number of directions of every movement, so as the minimal size of the states' buffer */
+    int DIRECTIONS = 4;
+
+    class Ext {
+
+        /**
+         * Gets {@link MoveState} for the first met piece on the way
+         * @param x met piece's column
+         * @param y met piece's row
+         * @param distance distance to the met piece
+         * @param color color of the moving piece
+         * @param positions board
+         * @return {@link MoveState#SAME_COLOR} or {@link MoveState#DIFFERENT_COLOR} state
+         */
+
+        static int metPieceState(
+                final int x,
+                final int y,
+                final int distance,
+                final PieceColor color,
+                final Occupancy positions
+        ) {
+            return MoveState.of(
+                    positions.get(x, y).getColor() == color ?
+                            MoveState.SAME_COLOR :
+                            MoveState.DIFFERENT_COLOR,
+                    distance
+            );
+        }
+
+        /**
+         * Gets the number of all possible moves (including captures)
+         * @param states {@link MoveState}s of all ways
+         */
+
+        static int movesCount(final int[] states) {
+            int moves = 0;
+            for (int i = 0; i < DIRECTIONS; ++i) moves += MoveState.movesCount(states[i]);
+            return moves;
+        }
+
+        /**
+         * Gets the number of all possible captures
+         * @param states {@link MoveState}s of all ways
+         */
+
+        static int capturesCount(final int[] states) {
+            int captures = 0;
+
+            for (int i = 0; i < DIRECTIONS; ++i)
+                if (MoveState.kind(states[i]) == MoveState.DIFFERENT_COLOR)
+                    ++captures;
+
+            return captures;
+        }
+    }
+
+    /** Writes packed {@link MoveState}s for all possible ways into the buffer */
+
+    @FunctionalInterface
+    interface GetFirstMetPositions {
+        void apply(
+                final PiecePosition position,
+                final PieceColor color,
+                final Occupancy positions,
+                final int boardSize,
+                final int[] states
+        );
+    }
+
+    /**
+     * Appends all possible moves (including captures) to the buffer
+     * @param position current piece's position
+     * @param color piece's color
+     * @param positions board
+     * @param boardSize number of rows / columns of the board
+     * @param getFirstMetPositions how to get first positions
+     * of pieces on the way (if there are any)
+     * @param dx column's steps of the ways in the order of states
+     * @param dy row's steps of the ways in the order of states
+     * @param states buffer for {@link MoveState}s
+     * (at least {@link LongDistanceMovement#DIRECTIONS} long)
+     * @param moves buffer for generated moves
+     * @see GetFirstMetPositions
+     */
+
+    default void generateLongDistanceMoves(
+            final PiecePosition position,
+            final PieceColor color,
+            final Occupancy positions,
+            final int boardSize,
+            final GetFirstMetPositions getFirstMetPositions,
+            final int[] dx,
+            final int[] dy,
+            final int[] states,
+            final MoveList moves
+    ) {
+        getFirstMetPositions.apply(position, color, positions, boardSize, states);
+
+        final int x = position.getX();
+        final int y = position.getY();
+
+        for (int i = 0; i < DIRECTIONS; ++i) {
+            final int count = MoveState.movesCount(states[i]);
+
+            for (int distance = 1; distance <= count; ++distance)
+                moves.add(Move.of(x, y, x + dx[i] * distance, y + dy[i] * distance));
+        }
+    }
+}
+
+/** {@link LongDistanceMovement} with diagonal moves */
+
+interface BishopMovement extends LongDistanceMovement {
+    class Ext {
+
+        /** Column's steps of diagonals in the order of states */
+        static final int[] DX = { 1, 1, -1, -1 };
+
+        /** Row's steps of diagonals in the order of states */
+        static final int[] DY = { 1, -1, 1, -1 };
+
+        /**
+         * Writes {@link MoveState}s for all diagonals
+         * @param position current piece's position
+         * @param color piece's color
+         * @param positions board
+         * @param boardSize number of rows / columns of the board
+         * @param states buffer for {@link MoveState}s for 4 diagonals
+         */
+
+        static void getFirstMetPositions(
+                final PiecePosition position,
+                final PieceColor color,
+                final Occupancy positions,
+                final int boardSize,
+                final int[] states
+        ) {
+            final int x = position.getX();
+            final int y = position.getY();
+
+            // --------------------------------------------------------
+            // Diagonal / is the line Y = X + (y-x),
+            // diagonal \ is the line Y = -X + (y+x).
+            // Both of them are indexed by the board with pieces' x,
+            // so Y of the met piece is restored from the equation
+            // and distance is the difference of x
+            // --------------------------------------------------------
+
+            final int diagonal = positions.diagonalOf(x, y);
+            final int antiDiagonal = positions.antiDiagonalOf(x, y);
+
+            // 0: x > to y > (up-right)
+            // 1: x > to y < (down-right)
+            // 2: x < to y > (up-left)
+            // 3: x < to y < (down-left)
+
+            // Searching the closest pieces on both diagonals.
+            // If there are none, state is Empty (with distance to boundaries)
+
+            final int upRightX = positions.diagonals().higher(diagonal, x);
+            final int downRightX = positions.antiDiagonals().higher(antiDiagonal, x);
+            final int upLeftX = positions.antiDiagonals().lower(antiDiagonal, x);
+            final int downLeftX = positions.diagonals().lower(diagonal, x);
+
+            states[0] = upRightX == LineIndex.NONE ?
+                    MoveState.of(MoveState.EMPTY, Math.min(boardSize - x, boardSize - y)) :
+                    LongDistanceMovement.Ext.metPieceState(upRightX, y + (upRightX - x), upRightX - x, color, positions);
+
+            states[1] = downRightX == LineIndex.NONE ?
+                    MoveState.of(MoveState.EMPTY, Math.min(boardSize - x, y - 1)) :
+                    LongDistanceMovement.Ext.metPieceState(downRightX, y - (downRightX - x), downRightX - x, color, positions);
+
+            states[2] = upLeftX == LineIndex.NONE ?
+                    MoveState.of(MoveState.EMPTY, Math.min(x - 1, boardSize - y)) :
+                    LongDistanceMovement.Ext.metPieceState(upLeftX, y + (x - upLeftX), x - upLeftX, color, positions);
+
+            states[3] = downLeftX == LineIndex.NONE ?
+                    MoveState.of(MoveState.EMPTY, Math.min(x - 1, y - 1)) :
+                    LongDistanceMovement.Ext.metPieceState(downLeftX, y - (x - downLeftX), x - downLeftX, color, positions);
+        }
+    }
+
+    /**
+     * Gets the number of all possible moves (including captures)
+     * @param position current piece's position
+     * @param color piece's color
+     * @param positions board
+     * @param boardSize number of rows / columns of the board
+     * @param states buffer for {@link MoveState}s
+     * @return the number of all possible moves
+     */
+
+    default int getDiagonalMovesCount(
+            final PiecePosition position,
+            final PieceColor color,
+            final Occupancy positions,
+            final int boardSize,
+            final int[] states
+    ) {
+        return positions.getSlidingMovesCount(position, color, true, states);
+    }
+
+    /**
+     * Gets the number of all possible captures
+     * @param position current piece's position
+     * @param color piece's color
+     * @param positions board
+     * @param boardSize number of rows / columns of the board
+     * @param states buffer for {@link MoveState}s
+     * @return the number of all possible captures
+     */
+
+    default int getDiagonalCapturesCount(
+            final PiecePosition position,
+            final PieceColor color,
+            final Occupancy positions,
+            final int boardSize,
+            final int[] states
+    ) {
+        return positions.getSlidingCapturesCount(position, color, true, states);
+    }
+
+    /**
+     * Appends all possible diagonal moves (including captures) to the buffer
+     * @param position current piece's position
+     * @param color piece's color
+     * @param positions board
+     * @param boardSize number of rows / columns of the board
+     * @param states buffer for {@link MoveState}s
+     * @param moves buffer for generated moves
+     */
+
+    default void generateDiagonalMoves(
+            final PiecePosition position,
+            final PieceColor color,
+            final Occupancy positions,
+            final int boardSize,
+            final int[] states,
+            final MoveList moves
+    ) {
+        generateLongDistanceMoves(
+                position,
+                color,
+                positions,
+                boardSize,
+                Ext::getFirstMetPositions,
+                Ext.DX,
+                Ext.DY,
+                states,
+                moves
+        );
+    }
+}
+
+/** {@link LongDistanceMovement} with orthogonal moves */
+
+interface RookMovement extends LongDistanceMovement {
+    class Ext {
+
+        /** Column's steps of orthogonal ways in the order of states */
+        static final int[] DX = { 1, -1, 0, 0 };
+
+        /** Row's steps of orthogonal ways in the order of states */
+        static final int[] DY = { 0, 0, 1, -1 };
+
+        /**
+         * Writes {@link MoveState}s for all orthogonal moves
+         * @param position current piece's position
+         * @param color piece's color
+         * @param positions board
+         * @param boardSize number of rows / columns of the board
+         * @param states buffer for {@link MoveState}s for 4 orthogonal moves
+         */
+
+        static void getFirstMetPositions(
+                final PiecePosition position,
+                final PieceColor color,
+                final Occupancy positions,
+                final int boardSize,
+                final int[] states
+        ) {
+            final int x = position.getX();
+            final int y = position.getY();
+
+            // 0: x > (right)
+            // 1: x < (left)
+            // 2: y > (up)
+            // 3: y < (down)
+
+            // Searching the closest pieces on both row and column.
+            // If there are none, state is Empty (with distance to boundaries)
+
+            final int row = positions.rowOf(x, y);
+            final int column = positions.columnOf(x, y);
+
+            final int rightX = positions.rows().higher(row, x);
+            final int leftX = positions.rows().lower(row, x);
+            final int upY = positions.columns().higher(column, y);
+            final int downY = positions.columns().lower(column, y);
+
+            states[0] = rightX == LineIndex.NONE ?
+                    MoveState.of(MoveState.EMPTY, boardSize - x) :
+                    LongDistanceMovement.Ext.metPieceState(rightX, y, rightX - x, color, positions);
+
+            states[1] = leftX == LineIndex.NONE ?
+                    MoveState.of(MoveState.EMPTY, x - 1) :
+                    LongDistanceMovement.Ext.metPieceState(leftX, y, x - leftX, color, positions);
+
+            states[2] = upY == LineIndex.NONE ?
+                    MoveState.of(MoveState.EMPTY, boardSize - y) :
+                    LongDistanceMovement.Ext.metPieceState(x, upY, upY - y, color, positions);
+
+            states[3] = downY == LineIndex.NONE ?
+                    MoveState.of(MoveState.EMPTY, y - 1) :
+                    LongDistanceMovement.Ext.metPieceState(x, downY, y - downY, color, positions);
+        }
+    }
+
+    /**
+     * Gets the number of all possible moves (including captures)
+     * @param position current piece's position
+     * @param color piece's color
+     * @param positions board
+     * @param boardSize number of rows / columns of the board
+     * @param states buffer for {@link MoveState}s
+     * @return the number of all possible moves
+     */
+
+    default int getOrthogonalMovesCount(
+            final PiecePosition position,
+            final PieceColor color,
+            final Occupancy positions,
+            final int boardSize,
+            final int[] states
+    ) {
+        return positions.getSlidingMovesCount(position, color, false, states);
+    }
+
+    /**
+     * Gets the number of all possible captures
+     * @param position current piece's position
+     * @param color piece's color
+     * @param positions board
+     * @param boardSize number of rows / columns of the board
+     * @param states buffer for {@link MoveState}s
+     * @return the number of all possible captures
+     */
+
+    default int getOrthogonalCapturesCount(
+            final PiecePosition position,
+            final PieceColor color,
+            final Occupancy positions,
+            final int boardSize,
+            final int[] states
+    ) {
+        return positions.getSlidingCapturesCount(position, color, false, states);
+    }
+
+    /**
+     * Appends all possible orthogonal moves (including captures) to the buffer
+     * @param position current piece's position
+     * @param color piece's color
+     * @param positions board
+     * @param boardSize number of rows / columns of the board
+     * @param states buffer for {@link MoveState}s
+     * @param moves buffer for generated moves
+     */
+
+    default void generateOrthogonalMoves(
+            final PiecePosition position,
+            final PieceColor color,
+            final Occupancy positions,
+            final int boardSize,
+            final int[] states,
+            final MoveList moves
+    ) {
+        generateLongDistanceMoves(
+                position,
+                color,
+                positions,
+                boardSize,
+                Ext::getFirstMetPositions,
+                Ext.DX,
+                Ext.DY,
+                states,
+                moves
+        );
+    }
+}
+
+/**
+ * Offsets of cells that piece with {@link SimpleMovement} can reach from its position.
+ * For every edge distance (up to the longest offset) masks of offsets
+ * that stay in bounds are precomputed, so targets are enumerated
+ * as set bits of a mask without any checks and allocations
+ */
+
+final class JumpTable {
+
+    /** Columns' offsets */
+    private final int[] dx;
+
+    /** Rows' offsets */
+    private final int[] dy;
+
+    /** Longest offset on any axis */
+    private final int reach;
+
+    /**
+     * Masks of offsets that stay in bounds on x axis
+     * by distances to the left and right borders (up to {@link JumpTable#reach})
+     */
+
+    private final int[][] xMasks;
+
+    /**
+     * Masks of offsets that stay in bounds on y axis
+     * by distances to the bottom and top borders (up to {@link JumpTable#reach})
+     */
+
+    private final int[][] yMasks;
+
+    /**
+     * Constructs table from offsets
+     * @param dx columns' offsets
+     * @param dy rows' offsets
+     */
+
+    JumpTable(final int[] dx, final int[] dy) {
+        this.dx = dx;
+        this.dy = dy;
+
+        int longest = 0;
+
+        for (int i = 0; i < dx.length; ++i)
+            longest = Math.max(longest, Math.max(Math.abs(dx[i]), Math.abs(dy[i])));
+
+        reach = longest;
+        xMasks = axisMasks(dx, reach);
+        yMasks = axisMasks(dy, reach);
+    }
+
+    /** Number of offsets in the table */
+
+    int size() { return dx.length; }
+
+    /** Column's offset by its number */
+
+    int dx(final int offset) { return dx[offset]; }
+
+    /** Row's offset by its number */
+
+    int dy(final int offset) { return dy[offset]; }
+
+    /**
+     * Gets mask of offsets that lead to cells on the board
+     * @param x column of the piece
+     * @param y row of the piece
+     * @param boardSize number of rows / columns of the board
+     * @return mask where bit i is set if offset i stays in bounds
+     */
+
+    int inBoundsMask(final int x, final int y, final int boardSize) {
+        return xMasks[Math.min(x - 1, reach)][Math.min(boardSize - x, reach)] &
+                yMasks[Math.min(y - 1, reach)][Math.min(boardSize - y, reach)];
+    }
+
+    /** Precomputes masks of offsets for all clamped distances to borders of one axis */
+
+    private static int[][] axisMasks(final int[] offsets, final int reach) {
+        final int[][] masks = new int[reach + 1][reach + 1];
+
+        for (int before = 0; before <= reach; ++before)
+            for (int after = 0; after <= reach; ++after)
+                for (int i = 0; i < offsets.length; ++i)
+                    if (offsets[i] >= -before && offsets[i] <= after)
+                        masks[before][after] |= 1 << i;
+
+        return masks;
+    }
+}
+
+/**
+ * {@link Movement} with compile-time constant amount of positions to move
+ * @see SimpleChessPiece
+ */
+
+interface SimpleMovement extends Movement {
+    /**
+     * Gets offsets of all positions that piece
+     * potentially can move (even if it's not possible)
+     * @return the maximum number of positions to move in
+     */
+
+    JumpTable getSimpleMoveTable();
+
+    /**
+     * Gets offsets of all potential positions to capture (even if it's not possible).
+     * By default, it is the same as {@link SimpleMovement#getSimpleMoveTable()}
+     * @return the maximum number of positions to capture
+     */
+
+    default JumpTable getSimpleCaptureTable() { return getSimpleMoveTable(); }
+
+    /**
+     * Gets the number of all possible moves (including captures)
+     * @param position current piece's position
+     * @param color piece's color
+     * @param positions board
+     * @param boardSize number of rows / columns of the board
+     * @return the number of all possible moves
+     */
+
+    default int getSimpleMovesCount(
+            final PiecePosition position,
+            final PieceColor color,
+            final Occupancy positions,
+            final int boardSize
+    ) {
+        final JumpTable table = getSimpleMoveTable();
+        final int x = position.getX();
+        final int y = position.getY();
+
+        int moves = 0;
+
+        for (int mask = table.inBoundsMask(x, y, boardSize); mask != 0; mask &= mask - 1) {
+            final int offset = Integer.numberOfTrailingZeros(mask);
+            final ChessPiece piece = positions.get(x + table.dx(offset), y + table.dy(offset));
+            if (piece == null || piece.getColor() != color) ++moves;
+        }
+
+        return moves;
+    }
+
+    /**
+     * Gets the number of all possible captures
+     * @param position current piece's position
+     * @param color piece's color
+     * @param positions board
+     * @param boardSize number of rows / columns of the board
+     * @return the number of all possible captures
+     */
+
+    default int getSimpleCapturesCount(
+            final PiecePosition position,
+            final PieceColor color,
+            final Occupancy positions,
+            final int boardSize
+    ) {
+        final JumpTable table = getSimpleCaptureTable();
+        final int x = position.getX();
+        final int y = position.getY();
+
+        int captures = 0;
+
+        for (int mask = table.inBoundsMask(x, y, boardSize); mask != 0; mask &= mask - 1) {
+            final int offset = Integer.numberOfTrailingZeros(mask);
+            final ChessPiece piece = positions.get(x + table.dx(offset), y + table.dy(offset));
+            if (piece != null && piece.getColor() != color) ++captures;
+        }
+
+        return captures;
+    }
+
+    /**
+     * Appends all possible moves (including captures) to the buffer.
+     * Cells of the move table are taken only if they are empty
+     * (or if captures use the same table), cells of the capture table
+     * are taken only if they are occupied by the opponent
+     * @param position current piece's position
+     * @param color piece's color
+     * @param positions board
+     * @param boardSize number of rows / columns of the board
+     * @param moves buffer for generated moves
+     */
+
+    default void generateSimpleMoves(
+            final PiecePosition position,
+            final PieceColor color,
+            final Occupancy positions,
+            final int boardSize,
+            final MoveList moves
+    ) {
+        final JumpTable moveTable = getSimpleMoveTable();
+        final JumpTable captureTable = getSimpleCaptureTable();
+        final boolean capturesAsMoves = moveTable == captureTable;
+        final int x = position.getX();
+        final int y = position.getY();
+
+        for (int mask = moveTable.inBoundsMask(x, y, boardSize); mask != 0; mask &= mask - 1) {
+            final int offset = Integer.numberOfTrailingZeros(mask);
+            final int toX = x + moveTable.dx(offset);
+            final int toY = y + moveTable.dy(offset);
+            final ChessPiece piece = positions.get(toX, toY);
+
+            if (piece == null || capturesAsMoves && piece.getColor() != color)
+                moves.add(Move.of(x, y, toX, toY));
+        }
+
+        if (capturesAsMoves)
+            return;
+
+        for (int mask = captureTable.inBoundsMask(x, y, boardSize); mask != 0; mask &= mask - 1) {
+            final int offset = Integer.numberOfTrailingZeros(mask);
+            final int toX = x + captureTable.dx(offset);
+            final int toY = y + captureTable.dy(offset);
+            final ChessPiece piece = positions.get(toX, toY);
+
+            if (piece != null && piece.getColor() != color)
+                moves.add(Move.of(x, y, toX, toY));
+        }
+    }
+}
+
+/**
+ * Ancestor for all chess pieces.
+ * Should be sealed class, but there are none of them in Java 8...
+ * BTW, this feature and many others are stolen from Kotlin :)
+ */
+
+abstract class ChessPiece implements Movement {
+
+    /** Current position */
+    protected final PiecePosition position;
+
+    /** Piece's color */
+    protected final PieceColor color;
+
+    /**
+     * Constructs piece from given position and color.
+     * P.S. I don't care, it must be marked as protected.
+     * It is illegal to use this constructor outside the ancestors
+     */
+
+    protected ChessPiece(final PiecePosition piecePosition, final PieceColor pieceColor) {
+        position = piecePosition;
+        color = pieceColor;
+    }
+
+    /**
+     * Constructs the {@link ChessPiece} from the given string
+     * @param name name of the piece to construct
+     * @param position position of the constructable piece
+     * @param color color of the constructable piece
+     * @throws InvalidPieceNameException if the name is not in set:
+     * {`Pawn`, `King`, `Knight`, `Rook`, `Queen`, `Bishop`}
+     */
+
+    static ChessPiece parseOrThrow(
+            final String name,
+            final PiecePosition position,
+            final PieceColor color
+    ) throws InvalidPieceNameException {
+        final PieceType type = PieceType.parse(name);
+        if (type != null) return type.create(position, color);
+        throw new InvalidPieceNameException();
+    }
+
+    /**
+     * Does exactly what it should do.
+     * BTW, completely useless cause it's final
+     */
+
+    public final PiecePosition getPosition() { return position; }
+
+    /**
+     * Does exactly what it should do.
+     * BTW, completely useless cause it's final
+     */
+
+    public final PieceColor getColor() { return color; }
+
+    /** Gets the type of the piece */
+
+    public abstract PieceType getType();
+
+    /**
+     * Gets the number of all possible moves (including captures)
+     * @param positions board
+     * @param boardSize number of rows / columns of the board
+     * @param states buffer for {@link MoveState}s of long distance movements
+     * @return the number of all possible moves
+     */
+
+    public abstract int getMovesCount(final Occupancy positions, final int boardSize, final int[] states);
+
+    /**
+     * Gets the number of all possible captures
+     * @param positions board
+     * @param boardSize number of rows / columns of the board
+     * @param states buffer for {@link MoveState}s of long distance movements
+     * @return the number of all possible captures
+     */
+
+    public abstract int getCapturesCount(final Occupancy positions, final int boardSize, final int[] states);
+
+    /**
+     * Appends all possible moves (including captures) to the buffer
+     * @param positions board
+     * @param boardSize number of rows / columns of the board
+     * @param states buffer for {@link MoveState}s of long distance movements
+     * @param moves buffer for generated moves
+     */
+
+    public abstract void generateMoves(
+            final Occupancy positions,
+            final int boardSize,
+            final int[] states,
+            final MoveList moves
+    );
+}
+
+/**
+ * Ancestor for all chess pieces with
+ * compile-time constant maximum number of moves
+ * @see SimpleMovement
+ */
+
+abstract class SimpleChessPiece extends ChessPiece implements SimpleMovement {
+
+    /** Constructs piece from given position and color */
+
+    protected SimpleChessPiece(final PiecePosition piecePosition, final PieceColor pieceColor) {
+        super(piecePosition, pieceColor);
+    }
+
+    /**
+     * Gets the number of all possible moves (including captures)
+     * @param positions board
+     * @param boardSize number of rows / columns of the board
+     * @param states buffer for {@link MoveState}s of long distance movements
+     * @return the number of all possible moves
+     */
+
+    @Override
+    public int getMovesCount(final Occupancy positions, final int boardSize, final int[] states) {
+        return getSimpleMovesCount(position, color, positions, boardSize);
+    }
+
+    /**
+     * Gets the number of all possible captures
+     * @param positions board
+     * @param boardSize number of rows / columns of the board
+     * @param states buffer for {@link MoveState}s of long distance movements
+     * @return the number of all possible captures
+     */
+
+    @Override
+    public int getCapturesCount(final Occupancy positions, final int boardSize, final int[] states) {
+        return getSimpleCapturesCount(position, color, positions, boardSize);
+    }
+
+    /**
+     * Appends all possible moves (including captures) to the buffer
+     * @param positions board
+     * @param boardSize number of rows / columns of the board
+     * @param states buffer for {@link MoveState}s of long distance movements
+     * @param moves buffer for generated moves
+     */
+
+    @Override
+    public void generateMoves(
+            final Occupancy positions,
+            final int boardSize,
+            final int[] states,
+            final MoveList moves
+    ) {
+        generateSimpleMoves(position, color, positions, boardSize, moves);
+    }
+}
+
+/** Knight, AKA Конь. Moves with Г trajectory */
+
+final class Knight extends SimpleChessPiece {
+
+    /** Constructs knight from the position and color */
+    public Knight(final PiecePosition piecePosition, final PieceColor pieceColor) { super(piecePosition, pieceColor); }
+
+    @Override
+    public PieceType getType() { return PieceType.KNIGHT; }
+
+    // Offsets of all jumps in the order of table
+    //
+    // -------------------------------------------- 1 --------------------------------------------
+
+    // . . . . .
+    // . . . . .
+    // . . K . .
+    // . . . . .
+    // . P . . .
+
+    // -------------------------------------------- 2 --------------------------------------------
+
+    // . P . . .
+    // . . . . .
+    // . . K . .
+    // . . . . .
+    // . . . . .
+
+    // -------------------------------------------- 3 --------------------------------------------
+
+    // . . . . .
+    // . . . . .
+    // . . K . .
+    // P . . . .
+    // . . . . .
+
+    // -------------------------------------------- 4 --------------------------------------------
+
+    // . . . . .
+    // P . . . .
+    // . . K . .
+    // . . . . .
+    // . . . . .
+
+    // -------------------------------------------- 5 --------------------------------------------
+
+    // . . . . .
+    // . . . . .
+    // . . K . .
+    // . . . . .
+    // . . . P .
+
+    // -------------------------------------------- 6 --------------------------------------------
+
+    // . . . P .
+    // . . . . .
+    // . . K . .
+    // . . . . .
+    // . . . . .
+
+    // -------------------------------------------- 7 --------------------------------------------
+
+    // . . . . .
+    // . . . . .
+    // . . K . .
+    // . . . . P
+    // . . . . .
+
+    // -------------------------------------------- 8 --------------------------------------------
+
+    // . . . . .
+    // . . . . P
+    // . . K . .
+    // . . . . .
+    // . . . . .
+
+    // -------------------------------------------------------------------------------------------
+
+    /** Offsets of all jumps, see the diagrams above */
+
+    static final JumpTable MOVES = new JumpTable(
+            new int[] { -1, -1, -2, -2, 1, 1, 2, 2 },
+            new int[] { -2, 2, -1, 1, -2, 2, -1, 1 }
+    );
+
+    /**
+     * Gets offsets of all positions that piece
+     * potentially can move (even if it's not possible)
+     * @return the maximum number of positions to move in
+     */
+
+    @Override
+    public JumpTable getSimpleMoveTable() { return MOVES; }
+}
+
+/** King, AKA Король. Moves on neighbor cells */
+
+final class King extends SimpleChessPiece {
+
+    /** Constructs the king from given position and color */
+    public King(final PiecePosition piecePosition, final PieceColor pieceColor) { super(piecePosition, pieceColor); }
+
+    @Override
+    public PieceType getType() { return PieceType.KING; }
+
+    /** Offsets of all neighbor cells */
+
+    static final JumpTable MOVES = new JumpTable(
+            new int[] { -1, -1, -1, 0, 0, 1, 1, 1 },
+            new int[] { -1, 0, 1, -1, 1, -1, 0, 1 }
+    );
+
+    /**
+     * Gets offsets of all positions that piece
+     * potentially can move (even if it's not possible)
+     * @return the maximum number of positions to move in
+     */
+
+    @Override
+    public JumpTable getSimpleMoveTable() { return MOVES; }
+}
+
+/** Pawn, AKA Пешка. Moves on the cell in front of her, captures 2 cell on diagonals */
+
+final class Pawn extends SimpleChessPiece {
+
+    /** Constructs the pawn from given position and color */
+    public Pawn(final PiecePosition piecePosition, final PieceColor pieceColor) { super(piecePosition, pieceColor); }
+
+    @Override
+    public PieceType getType() { return PieceType.PAWN; }
+
+    /** Offset of the move for white pawns */
+    static final JumpTable WHITE_MOVES = new JumpTable(new int[] { 0 }, new int[] { 1 });
+
+    /** Offset of the move for black pawns */
+    static final JumpTable BLACK_MOVES = new JumpTable(new int[] { 0 }, new int[] { -1 });
+
+    /** Offsets of captures for white pawns */
+    static final JumpTable WHITE_CAPTURES = new JumpTable(new int[] { -1, 1 }, new int[] { 1, 1 });
+
+    /** Offsets of captures for black pawns */
+    static final JumpTable BLACK_CAPTURES = new JumpTable(new int[] { -1, 1 }, new int[] { -1, -1 });
+
+    /**
+     * Gets offsets of all positions that piece
+     * potentially can move (even if it's not possible)
+     * @return the maximum number of positions to move in
+     */
+
+    @Override
+    public JumpTable getSimpleMoveTable() { return color == PieceColor.WHITE ? WHITE_MOVES : BLACK_MOVES; }
+
+    /**
+     * Gets offsets of all potential positions to capture (even if it's not possible).
+     * @return the maximum number of positions to capture
+     */
+
+    @Override
+    public JumpTable getSimpleCaptureTable() { return color == PieceColor.WHITE ? WHITE_CAPTURES : BLACK_CAPTURES; }
+
+    /**
+     * Gets the number of all possible moves (including captures)
+     * @param position current piece's position
+     * @param color piece's color
+     * @param positions board
+     * @param boardSize number of rows / columns of the board
+     * @return the number of all possible moves
+     */
+
+    @Override
+    public int getSimpleMovesCount(
+            final PiecePosition position,
+            final PieceColor color,
+            final Occupancy positions,
+            final int boardSize
+    ) {
+        final int x = position.getX();
+        final int y = position.getY() + (color == PieceColor.WHITE ? 1 : -1);
+        if (y < 1 || y > boardSize) return 0;
+        return positions.get(x, y) == null ? 1 : 0;
+    }
+
+    /**
+     * Gets the number of all possible moves (including captures)
+     * @param positions board
+     * @param boardSize number of rows / columns of the board
+     * @param states buffer for {@link MoveState}s of long distance movements
+     * @return the number of all possible moves
+     */
+
+    @Override
+    public int getMovesCount(final Occupancy positions, final int boardSize, final int[] states) {
+        return getSimpleMovesCount(position, color, positions, boardSize) +
+                getSimpleCapturesCount(position, color, positions, boardSize);
+    }
+}
+
+/** Bishop, AKA Слон. Moves diagonally on any number of cells */
+
+final class Bishop extends ChessPiece implements BishopMovement {
+
+    /** Constructs the bishop from given position and color */
+    public Bishop(final PiecePosition piecePosition, final PieceColor pieceColor) { super(piecePosition, pieceColor); }
+
+    @Override
+    public PieceType getType() { return PieceType.BISHOP; }
+
+    /**
+     * Gets the number of all possible moves (including captures)
+     * @param positions board
+     * @param boardSize number of rows / columns of the board
+     * @param states buffer for {@link MoveState}s of long distance movements
+     * @return the number of all possible moves
+     */
+
+    @Override
+    public int getMovesCount(final Occupancy positions, final int boardSize, final int[] states) {
+        return getDiagonalMovesCount(position, color, positions, boardSize, states);
+    }
+
+    /**
+     * Gets the number of all possible captures
+     * @param positions board
+     * @param boardSize number of rows / columns of the board
+     * @param states buffer for {@link MoveState}s of long distance movements
+     * @return the number of all possible captures
+     */
+
+    @Override
+    public int getCapturesCount(final Occupancy positions, final int boardSize, final int[] states) {
+        return getDiagonalCapturesCount(position, color, positions, boardSize, states);
+    }
+
+    /**
+     * Appends all possible moves (including captures) to the buffer
+     * @param positions board
+     * @param boardSize number of rows / columns of the board
+     * @param states buffer for {@link MoveState}s of long distance movements
+     * @param moves buffer for generated moves
+     */
+
+    @Override
+    public void generateMoves(
+            final Occupancy positions,
+            final int boardSize,
+            final int[] states,
+            final MoveList moves
+    ) {
+        generateDiagonalMoves(position, color, positions, boardSize, states, moves);
+    }
+}
+
+/** Rook, AKA Ладья. Moves orthogonally on any number of cells */
+
+final class Rook extends ChessPiece implements RookMovement {
+
+    /** Constructs the rook from given position and color */
+    public Rook(final PiecePosition piecePosition, final PieceColor pieceColor) { super(piecePosition, pieceColor); }
+
+    @Override
+    public PieceType getType() { return PieceType.ROOK; }
+
+    /**
+     * Gets the number of all possible moves (including captures)
+     * @param positions board
+     * @param boardSize number of rows / columns of the board
+     * @param states buffer for {@link MoveState}s of long distance movements
+     * @return the number of all possible moves
+     */
+
+    @Override
+    public int getMovesCount(final Occupancy positions, final int boardSize, final int[] states) {
+        return getOrthogonalMovesCount(position, color, positions, boardSize, states);
+    }
+
+    /**
+     * Gets the number of all possible captures
+     * @param positions board
+     * @param boardSize number of rows / columns of the board
+     * @param states buffer for {@link MoveState}s of long distance movements
+     * @return the number of all possible captures
+     */
+
+    @Override
+    public int getCapturesCount(final Occupancy positions, final int boardSize, final int[] states) {
+        return getOrthogonalCapturesCount(position, color, positions, boardSize, states);
+    }
+
+    /**
+     * Appends all possible moves (including captures) to the buffer
+     * @param positions board
+     * @param boardSize number of rows / columns of the board
+     * @param states buffer for {@link MoveState}s of long distance movements
+     * @param moves buffer for generated moves
+     */
+
+    @Override
+    public void generateMoves(
+            final Occupancy positions,
+            final int boardSize,
+            final int[] states,
+            final MoveList moves
+    ) {
+        generateOrthogonalMoves(position, color, positions, boardSize, states, moves);
+    }
+}
+
+/** Queen, AKA Королева. Moves as all pieces altogether */
+
+final class Queen extends ChessPiece implements BishopMovement, RookMovement {
+
+    /** Constructs the rook from given position and color */
+    public Queen(final PiecePosition piecePosition, final PieceColor pieceColor) { super(piecePosition, pieceColor); }
+
+    @Override
+    public PieceType getType() { return PieceType.QUEEN; }
+
+    /**
+     * Gets the number of all possible moves (including captures)
+     * @param positions board
+     * @param boardSize number of rows / columns of the board
+     * @param states buffer for {@link MoveState}s of long distance movements
+     * @return the number of all possible moves
+     */
+
+    @Override
+    public int getMovesCount(final Occupancy positions, final int boardSize, final int[] states) {
+        final int diagonal = getDiagonalMovesCount(position, color, positions, boardSize, states);
+        final int orthogonal = getOrthogonalMovesCount(position, color, positions, boardSize, states);
+        return diagonal + orthogonal;
+    }
+
+    /**
+     * Gets the number of all possible captures
+     * @param positions board
+     * @param boardSize number of rows / columns of the board
+     * @param states buffer for {@link MoveState}s of long distance movements
+     * @return the number of all possible captures
+     */
+
+    @Override
+    public int getCapturesCount(final Occupancy positions, final int boardSize, final int[] states) {
+        final int diagonal = getDiagonalCapturesCount(position, color, positions, boardSize, states);
+        final int orthogonal = getOrthogonalCapturesCount(position, color, positions, boardSize, states);
+        return diagonal + orthogonal;
+    }
+
+    /**
+     * Appends all possible moves (including captures) to the buffer
+     * @param positions board
+     * @param boardSize number of rows / columns of the board
+     * @param states buffer for {@link MoveState}s of long distance movements
+     * @param moves buffer for generated moves
+     */
+
+    @Override
+    public void generateMoves(
+            final Occupancy positions,
+            final int boardSize,
+            final int[] states,
+            final MoveList moves
+    ) {
+        generateDiagonalMoves(position, color, positions, boardSize, states, moves);
+        generateOrthogonalMoves(position, color, positions, boardSize, states, moves);
+    }
+}
+
+/** Ancestor for all chess-related exception */
+
+abstract class ChessException extends Exception {}
+
+/** Threw if board size is not in [3..1000000] */
+
+final class InvalidBoardSizeException extends ChessException {
+    @Override
+    public String getMessage() { return "Invalid board size"; }
+}
+
+/** Threw if number of pieces is not in [2..boardArea] */
+
+final class InvalidNumberOfPiecesException extends ChessException {
+    @Override
+    public String getMessage() { return "Invalid number of pieces"; }
+}
+
+/** Threw if the name is not in set {`Pawn`, `King`, `Knight`, `Rook`, `Queen`, `Bishop`} */
+
+final class InvalidPieceNameException extends ChessException {
+    @Override
+    public String getMessage() { return "Invalid piece name"; }
+}
+
+/** Threw if the color is neither `Black`, not `White` */
+
+final class InvalidPieceColorException extends ChessException {
+    @Override
+    public String getMessage() { return "Invalid piece color"; }
+}
+
+/** Threw if the position is invalid or occupied by another cell */
+
+final class InvalidPiecePositionException extends ChessException {
+    @Override
+    public String getMessage() { return "Invalid piece position"; }
+}
+
+/** Threw if there are not exactly two kings: black and white */
+
+final class InvalidGivenKingsException extends ChessException {
+    @Override
+    public String getMessage() { return "Invalid given Kings"; }
+}
+
+/** Threw if there are some IO error */
+
+final class InvalidInputException extends ChessException {
+    @Override
+    public String getMessage() { return "Invalid input"; }
+}
+
+/**
+ * Stores pieces by their cells, slots in the order of addition
+ * and sorted lines of all directions.
+ * Cells are addressed by packed coordinate (x - 1) * size + (y - 1).
+ * Unlike the map with string keys, lookups neither format
+ * nor hash strings, so they are cheap enough for the hot paths
+ * of all movements
+ * @see DenseOccupancy
+ * @see SparseOccupancy
+ */
+
+abstract class Occupancy {
+
+    /** Number of rows (columns) of the board */
+    protected final int size;
+
+    /**
+     * All pieces in the order of addition.
+     * Removed pieces leave null slots, so indices of other pieces are kept
+     */
+
+    private final List<ChessPiece> pieces = new ArrayList<>();
+
+    /** Pieces' x coordinates of every row, see {@link Occupancy#rowOf(int, int)} */
+    private final LineIndex rows;
+
+    /** Pieces' y coordinates of every column, see {@link Occupancy#columnOf(int, int)} */
+    private final LineIndex columns;
+
+    /** Pieces' x coordinates of every diagonal /, see {@link Occupancy#diagonalOf(int, int)} */
+    private final LineIndex diagonals;
+
+    /** Pieces' x coordinates of every diagonal \, see {@link Occupancy#antiDiagonalOf(int, int)} */
+    private final LineIndex antiDiagonals;
+
+    /**
+     * Constructs empty occupancy by the number of rows (columns)
+     * @param isSparse whether lines should be compressed
+     * instead of allocating every line of the board
+     */
+
+    protected Occupancy(final int boardSize, final boolean isSparse) {
+        size = boardSize;
+        rows = isSparse ? LineIndex.sparse() : new LineIndex(boardSize);
+        columns = isSparse ? LineIndex.sparse() : new LineIndex(boardSize);
+        diagonals = isSparse ? LineIndex.sparse() : new LineIndex(2 * boardSize - 1);
+        antiDiagonals = isSparse ? LineIndex.sparse() : new LineIndex(2 * boardSize - 1);
+    }
+
+    /**
+     * Constructs empty occupancy of the proper kind
+     * @param boardSize number of rows (columns) of the board
+     * @param isSparse whether memory should be proportional to the number of pieces
+     * instead of the area of the board
+     */
+
+    static Occupancy create(final int boardSize, final boolean isSparse) {
+        if (isSparse) return new SparseOccupancy(boardSize);
+        if (boardSize == BitboardOccupancy.SIZE) return new BitboardOccupancy();
+        return new DenseOccupancy(boardSize);
+    }
+
+    /** Checks if memory is proportional to the number of pieces */
+
+    abstract boolean isSparse();
+
+    /** Number of rows (columns) of the board */
+
+    int size() { return size; }
+
+    /**
+     * Checks if sliding pieces are counted one by one with table lookups,
+     * so the lines don't have to be swept to count all pieces
+     */
+
+    boolean hasSlidingLookups() { return false; }
+
+    /**
+     * Gets the number of all possible moves (including captures) of the sliding piece.
+     * The closest pieces are searched on the lines through the piece
+     * @param position piece's position
+     * @param color piece's color
+     * @param isDiagonal true for diagonal moves, false for orthogonal ones
+     * @param states buffer for {@link MoveState}s
+     * (at least {@link LongDistanceMovement#DIRECTIONS} long)
+     */
+
+    int getSlidingMovesCount(
+            final PiecePosition position,
+            final PieceColor color,
+            final boolean isDiagonal,
+            final int[] states
+    ) {
+        firstMetPositions(isDiagonal).apply(position, color, this, size, states);
+        return LongDistanceMovement.Ext.movesCount(states);
+    }
+
+    /**
+     * Gets the number of all possible captures of the sliding piece.
+     * The closest pieces are searched on the lines through the piece
+     * @param position piece's position
+     * @param color piece's color
+     * @param isDiagonal true for diagonal moves, false for orthogonal ones
+     * @param states buffer for {@link MoveState}s
+     * (at least {@link LongDistanceMovement#DIRECTIONS} long)
+     */
+
+    int getSlidingCapturesCount(
+            final PiecePosition position,
+            final PieceColor color,
+            final boolean isDiagonal,
+            final int[] states
+    ) {
+        firstMetPositions(isDiagonal).apply(position, color, this, size, states);
+        return LongDistanceMovement.Ext.capturesCount(states);
+    }
+
+    /** Gets the search of the closest pieces on diagonals or orthogonal lines */
+
+    private static LongDistanceMovement.GetFirstMetPositions firstMetPositions(final boolean isDiagonal) {
+        return isDiagonal ? BishopMovement.Ext::getFirstMetPositions : RookMovement.Ext::getFirstMetPositions;
+    }
+
+    /**
+     * Packs coordinates into the index of the cell.
+     * Coordinates must be in range 1..size
+     */
+
+    long pack(final int x, final int y) { return (long) (x - 1) * size + (y - 1); }
+
+    /**
+     * Gets index of the piece by its coordinates
+     * @return index in the order of addition or -1 if the cell
+     * is either empty or out of the board
+     */
+
+    abstract int indexOf(final int x, final int y);
+
+    /** Stores index of the piece in its cell */
+
+    protected abstract void setCell(final int x, final int y, final int index);
+
+    /** Makes the cell empty */
+
+    protected abstract void clearCell(final int x, final int y);
+
+    /**
+     * Gets piece by its coordinates
+     * @return piece on the cell or null if the cell
+     * is either empty or out of the board
+     */
+
+    ChessPiece get(final int x, final int y) {
+        final int index = indexOf(x, y);
+        return index == -1 ? null : pieces.get(index);
+    }
+
+    /**
+     * Gets piece by its index in the order of addition
+     * @return piece or null if it was removed
+     */
+
+    ChessPiece get(final int index) { return pieces.get(index); }
+
+    /** Number of pieces' slots, including slots of removed pieces */
+
+    int piecesNumber() { return pieces.size(); }
+
+    /**
+     * Puts piece into its cell and the new slot.
+     * Cell must be empty, it is checked by the {@link Board}
+     */
+
+    void put(final ChessPiece piece) {
+        pieces.add(null);
+        put(piece, pieces.size() - 1);
+    }
+
+    /**
+     * Puts piece into its cell and the given slot.
+     * Both cell and slot must be empty, it is checked by the {@link Board}
+     */
+
+    void put(final ChessPiece piece, final int index) {
+        final PiecePosition position = piece.getPosition();
+        final int x = position.getX();
+        final int y = position.getY();
+
+        pieces.set(index, piece);
+        setCell(x, y, index);
+
+        for (final LineFamily family : LineFamily.values())
+            lines(family).add(lineOf(family, x, y), family.keyOf(x, y));
+    }
+
+    /**
+     * Puts piece into its cell and the new slot,
+     * appending its coordinates to the ends of lines.
+     * Lines must be sorted with {@link Occupancy#sortLines()}
+     * before any other operation
+     */
+
+    void putUnsorted(final ChessPiece piece) {
+        final PiecePosition position = piece.getPosition();
+        final int x = position.getX();
+        final int y = position.getY();
+
+        pieces.add(piece);
+        setCell(x, y, pieces.size() - 1);
+
+        for (final LineFamily family : LineFamily.values())
+            lines(family).append(lineOf(family, x, y), family.keyOf(x, y));
+    }
+
+    /** Sorts all lines after {@link Occupancy#putUnsorted(ChessPiece)} */
+
+    void sortLines() {
+        for (final LineFamily family : LineFamily.values())
+            lines(family).sortLines();
+    }
+
+    /**
+     * Removes piece from the cell, its slot becomes empty
+     * @return index of the removed piece or -1 if the cell is empty
+     */
+
+    int remove(final int x, final int y) {
+        final int index = indexOf(x, y);
+        if (index == -1) return -1;
+
+        pieces.set(index, null);
+        clearCell(x, y);
+
+        for (final LineFamily family : LineFamily.values())
+            lines(family).remove(lineOf(family, x, y), family.keyOf(x, y));
+
+        return index;
+    }
+
+    /** Number of the row that contains the cell */
+
+    int rowOf(final int x, final int y) { return y - 1; }
+
+    /** Number of the column that contains the cell */
+
+    int columnOf(final int x, final int y) { return x - 1; }
+
+    /** Number of the diagonal / (Y = X + (y-x)) that contains the cell */
+
+    int diagonalOf(final int x, final int y) { return y - x + size - 1; }
+
+    /** Number of the diagonal \ (Y = -X + (y+x)) that contains the cell */
+
+    int antiDiagonalOf(final int x, final int y) { return x + y - 2; }
+
+    /** Number of the line of given family that contains the cell */
+
+    int lineOf(final LineFamily family, final int x, final int y) {
+        switch (family) {
+            case ROWS: return rowOf(x, y);
+            case COLUMNS: return columnOf(x, y);
+            case DIAGONALS: return diagonalOf(x, y);
+            default: return antiDiagonalOf(x, y);
+        }
+    }
+
+    /**
+     * Gets key of the closest piece on the line of given family
+     * @param sign 1 to search in the direction of increasing keys, -1 otherwise
+     * @return key of the piece (the cell itself is not included) or {@link LineIndex#NONE}
+     */
+
+    int closestKey(final LineFamily family, final int x, final int y, final int sign) {
+        final LineIndex lines = lines(family);
+        final int line = lineOf(family, x, y);
+        final int key = family.keyOf(x, y);
+        return sign > 0 ? lines.higher(line, key) : lines.lower(line, key);
+    }
+
+    /** Rows with pieces' x coordinates */
+
+    LineIndex rows() { return rows; }
+
+    /** Columns with pieces' y coordinates */
+
+    LineIndex columns() { return columns; }
+
+    /** Diagonals / with pieces' x coordinates */
+
+    LineIndex diagonals() { return diagonals; }
+
+    /** Diagonals \ with pieces' x coordinates */
+
+    LineIndex antiDiagonals() { return antiDiagonals; }
+
+    /** Gets all lines of given family */
+
+    LineIndex lines(final LineFamily family) {
+        switch (family) {
+            case ROWS: return rows;
+            case COLUMNS: return columns;
+            case DIAGONALS: return diagonals;
+            default: return antiDiagonals;
+        }
+    }
+}
+
+/**
+ * Stores pieces' indices in the grid with all cells of the board,
+ * so lookup is a single array access
+ */
+
+final class DenseOccupancy extends Occupancy {
+
+    /** Indices of pieces (starting from 1) by their packed coordinates, 0 for the empty cells */
+    private final int[] cells;
+
+    /** Constructs empty grid by the number of rows (columns) */
+
+    DenseOccupancy(final int boardSize) {
+        super(boardSize, false);
+        cells = new int[boardSize * boardSize];
+    }
+
+    @Override
+    boolean isSparse() { return false; }
+
+    @Override
+    int indexOf(final int x, final int y) {
+        if (x < 1 || x > size || y < 1 || y > size) return -1;
+        return cells[(x - 1) * size + (y - 1)] - 1;
+    }
+
+    @Override
+    protected void setCell(final int x, final int y, final int index) { cells[(x - 1) * size + (y - 1)] = index + 1; }
+
+    @Override
+    protected void clearCell(final int x, final int y) { cells[(x - 1) * size + (y - 1)] = 0; }
+}
+
+/**
+ * Standard 8x8 board that keeps 64-bit occupancy of all pieces and of every color,
+ * so sliding pieces are counted with {@link SlidingAttacks} lookups
+ * instead of searching the lines
+ */
+
+final class BitboardOccupancy extends Occupancy {
+
+    /** Number of rows (columns) of the standard board */
+    static final int SIZE = 8;
+
+    /** Indices of pieces (starting from 1) by their squares, 0 for the empty ones */
+    private final int[] cells = new int[SIZE * SIZE];
+
+    /** Squares of all pieces */
+    private long occupied = 0;
+
+    /** Squares of pieces by colors' ordinals */
+    private final long[] colorOccupied = new long[PieceColor.values().length];
+
+    BitboardOccupancy() { super(SIZE, false); }
+
+    @Override
+    boolean isSparse() { return false; }
+
+    /** Square of the cell: bit (y - 1) * 8 + (x - 1) */
+
+    static int squareOf(final int x, final int y) { return (y - 1) * SIZE + (x - 1); }
+
+    @Override
+    int indexOf(final int x, final int y) {
+        if (x < 1 || x > SIZE || y < 1 || y > SIZE) return -1;
+        return cells[squareOf(x, y)] - 1;
+    }
+
+    @Override
+    protected void setCell(final int x, final int y, final int index) {
+        final int square = squareOf(x, y);
+        cells[square] = index + 1;
+        occupied |= 1L << square;
+        colorOccupied[get(index).getColor().ordinal()] |= 1L << square;
+    }
+
+    @Override
+    protected void clearCell(final int x, final int y) {
+        final int square = squareOf(x, y);
+        final long bit = ~(1L << square);
+
+        cells[square] = 0;
+        occupied &= bit;
+
+        for (int color = 0; color < colorOccupied.length; ++color)
+            colorOccupied[color] &= bit;
+    }
+
+    @Override
+    boolean hasSlidingLookups() { return true; }
+
+    @Override
+    int getSlidingMovesCount(
+            final PiecePosition position,
+            final PieceColor color,
+            final boolean isDiagonal,
+            final int[] states
+    ) {
+        return Long.bitCount(attacksOf(position, isDiagonal) & ~colorOccupied[color.ordinal()]);
+    }
+
+    @Override
+    int getSlidingCapturesCount(
+            final PiecePosition position,
+            final PieceColor color,
+            final boolean isDiagonal,
+            final int[] states
+    ) {
+        final long opponents = occupied & ~colorOccupied[color.ordinal()];
+        return Long.bitCount(attacksOf(position, isDiagonal) & opponents);
+    }
+
+    /** Attacked squares up to the first met pieces (including them) */
+
+    private long attacksOf(final PiecePosition position, final boolean isDiagonal) {
+        final int square = squareOf(position.getX(), position.getY());
+        return isDiagonal ? SlidingAttacks.bishop(square, occupied) : SlidingAttacks.rook(square, occupied);
+    }
+}
+
+/**
+ * Attacks of sliding pieces on the 8x8 board for every square and occupancy.
+ * Relevant occupancy (ray cells without the border) is hashed
+ * with magic multiplication into the index of the square's table.
+ * Magics below were found by the random search with the fixed seed,
+ * they are checked while tables are filled on the first use
+ * (the search continues only if the magic does not fit),
+ * so other boards don't pay for the tables at all
+ */
+
+final class SlidingAttacks {
+    private static final int SQUARES = 64;
+
+    private static final int[] ROOK_DX = { 1, -1, 0, 0 };
+    private static final int[] ROOK_DY = { 0, 0, 1, -1 };
+    private static final int[] BISHOP_DX = { 1, 1, -1, -1 };
+    private static final int[] BISHOP_DY = { 1, -1, 1, -1 };
+
+    private static final long SEED = 0x5DEECE66DL;
+
+    private static final long[] FOUND_ROOK_MAGICS = {
+            0x0A80001080244000L, 0x8440049000200240L, 0xA080200080100008L, 0x4300086205001000L,
+            0x66002004700A0008L, 0x3200081001040200L, 0x3080008002000100L, 0x0E00004081082204L,
+            0x1400800080304000L, 0x1020401000200040L, 0x4000801000802000L, 0x0002000C20401200L,
+            0x0020800400800800L, 0x0080800400800200L, 0x4004001008020481L, 0x0140800040800100L,
+            0x00C0828000204000L, 0x0040010020408901L, 0x0841010040200010L, 0x240012000A420021L,
+            0x1200808004000800L, 0x0002010100040008L, 0x0200040002011008L, 0x8090020000A04104L,
+            0x0200400080008020L, 0x0200400180200080L, 0x2440410100200010L, 0x2090100080080080L,
+            0x0002050100080010L, 0x8B0A000200100804L, 0x0200100400020108L, 0xC1C2050600004084L,
+            0x0020800101002040L, 0x2000804000802010L, 0x2400820042002011L, 0x1000201001000904L,
+            0x8041001005000800L, 0x4000040080800200L, 0x0002005812000401L, 0xA0408004C0800B00L,
+            0x0410400080288000L, 0x127002432004C000L, 0x2C80408208220010L, 0x8409042010010008L,
+            0x0000080004008080L, 0x0084000402008080L, 0x0418902221240008L, 0x80021302408A0004L,
+            0x0540002080104080L, 0x20200040100020C0L, 0x0040100020048480L, 0x4440080080100080L,
+            0x0802050010080100L, 0x0348020004008080L, 0x8001001402005100L, 0x0882800100004080L,
+            0x2001008000204011L, 0x4082014303142082L, 0x8040090520001041L, 0x001221005000C805L,
+            0x0201001002040801L, 0x1002001001040882L, 0x8000109022010804L, 0xA02201108C004022L
+    };
+
+    private static final long[] FOUND_BISHOP_MAGICS = {
+            0x4641140404004014L, 0x8142220809011000L, 0x4030530200701218L, 0x00022082000C0480L,
+            0x8004042124000080L, 0x02AA080208800048L, 0x030A011C82404008L, 0x0000104804500800L,
+            0x0840081044008400L, 0xC101040108020084L, 0x0060080811002200L, 0x0000242401800042L,
+            0x0030011040000000L, 0x0208008804400800L, 0x0000040148080484L, 0x0000008208010402L,
+            0x0010210644100400L, 0x0010008801082080L, 0x180A480800810200L, 0x0400800802044400L,
+            0x8202140401200000L, 0x501200414804242CL, 0x0441014C48080480L, 0x0802282844141400L,
+            0x01044011A0020400L, 0x4030280830018101L, 0x0000881010004010L, 0x0001040080440080L,
+            0x0110030004200802L, 0x0140420100411008L, 0x000C028222621042L, 0x6822004804884804L,
+            0x4008200418122400L, 0xC002121001210144L, 0x4207080101020400L, 0x7422020082180080L,
+            0x2054050201240048L, 0x100604010000B000L, 0x141401104B020805L, 0x00042100223A0082L,
+            0x2004042008880400L, 0x0004024802020480L, 0x008100128A003001L, 0x1000002018000100L,
+            0x1082011024000080L, 0x8820081000200112L, 0x104870210C400200L, 0x011C010408388100L,
+            0x2C00880802100200L, 0x890044008410A800L, 0x0051021042084006L, 0x1410011084044000L,
+            0x1000001002088004L, 0x2006202411820000L, 0x00C0032204130A00L, 0x0820640420444080L,
+            0x1200208808084208L, 0xA000404058084822L, 0x5000010042080420L, 0x84100E9041228800L,
+            0x0000240040028210L, 0x0000002104010200L, 0x01A0441418882102L, 0x0108103040802080L
+    };
+
+    private static final long[] ROOK_MASKS = new long[SQUARES];
+    private static final long[] ROOK_MAGICS = new long[SQUARES];
+    private static final int[] ROOK_SHIFTS = new int[SQUARES];
+    private static final long[][] ROOK_ATTACKS = new long[SQUARES][];
+
+    private static final long[] BISHOP_MASKS = new long[SQUARES];
+    private static final long[] BISHOP_MAGICS = new long[SQUARES];
+    private static final int[] BISHOP_SHIFTS = new int[SQUARES];
+    private static final long[][] BISHOP_ATTACKS = new long[SQUARES][];
+
+    static {
+        final Random random = new Random(SEED);
+
+        for (int square = 0; square < SQUARES; ++square) {
+            init(square, ROOK_DX, ROOK_DY, FOUND_ROOK_MAGICS[square], ROOK_MASKS, ROOK_MAGICS, ROOK_SHIFTS, ROOK_ATTACKS, random);
+            init(square, BISHOP_DX, BISHOP_DY, FOUND_BISHOP_MAGICS[square], BISHOP_MASKS, BISHOP_MAGICS, BISHOP_SHIFTS, BISHOP_ATTACKS, random);
+        }
+    }
+
+    private SlidingAttacks() {}
+
+    /** Rook's attacks from the square with given occupancy */
+
+    static long rook(final int square, final long occupied) {
+        final int index = (int) (((occupied & ROOK_MASKS[square]) * ROOK_MAGICS[square]) >>> ROOK_SHIFTS[square]);
+        return ROOK_ATTACKS[square][index];
+    }
+
+    /** Bishop's attacks from the square with given occupancy */
+
+    static long bishop(final int square, final long occupied) {
+        final int index = (int) (((occupied & BISHOP_MASKS[square]) * BISHOP_MAGICS[square]) >>> BISHOP_SHIFTS[square]);
+        return BISHOP_ATTACKS[square][index];
+    }
+
+    /**
+     * Checks the found magic of the square (or searches for the new one) and fills its table.
+     * Candidate is accepted if all occupancies with different attacks
+     * are hashed into different indices
+     */
+
+    private static void init(
+            final int square,
+            final int[] dx,
+            final int[] dy,
+            final long foundMagic,
+            final long[] masks,
+            final long[] magics,
+            final int[] shifts,
+            final long[][] attacks,
+            final Random random
+    ) {
+        final long mask = relevantMask(square, dx, dy);
+        final int bits = Long.bitCount(mask);
+        final int subsetsNumber = 1 << bits;
+
+        // All subsets of the mask with the carry-rippler trick
+
+        final long[] occupancies = new long[subsetsNumber];
+        final long[] references = new long[subsetsNumber];
+        long subset = 0;
+
+        for (int i = 0; i < subsetsNumber; ++i) {
+            occupancies[i] = subset;
+            references[i] = slowAttacks(square, subset, dx, dy);
+            subset = (subset - mask) & mask;
+        }
+
+        final long[] table = new long[subsetsNumber];
+        final int[] epochs = new int[subsetsNumber];
+        final int shift = Long.SIZE - bits;
+
+        for (int epoch = 1; ; ++epoch) {
+            final long magic = epoch == 1 ? foundMagic : random.nextLong() & random.nextLong() & random.nextLong();
+
+            // Good magics spread the mask into the high bits
+            if (Long.bitCount((mask * magic) & 0xFF00000000000000L) < 6)
+                continue;
+
+            boolean isCollisionFree = true;
+
+            for (int i = 0; i < subsetsNumber && isCollisionFree; ++i) {
+                final int index = (int) ((occupancies[i] * magic) >>> shift);
+
+                if (epochs[index] != epoch) {
+                    epochs[index] = epoch;
+                    table[index] = references[i];
+                } else if (table[index] != references[i]) {
+                    isCollisionFree = false;
+                }
+            }
+
+            if (isCollisionFree) {
+                masks[square] = mask;
+                magics[square] = magic;
+                shifts[square] = shift;
+                attacks[square] = table;
+                return;
+            }
+        }
+    }
+
+    /** Cells of the rays that may block them (the last cell of every ray is excluded) */
+
+    private static long relevantMask(final int square, final int[] dx, final int[] dy) {
+        final int x = square % 8;
+        final int y = square / 8;
+        long mask = 0;
+
+        for (int direction = 0; direction < dx.length; ++direction) {
+            int cx = x + dx[direction];
+            int cy = y + dy[direction];
+
+            while (cx + dx[direction] >= 0 && cx + dx[direction] < 8 &&
+                    cy + dy[direction] >= 0 && cy + dy[direction] < 8) {
+                mask |= 1L << (cy * 8 + cx);
+                cx += dx[direction];
+                cy += dy[direction];
+            }
+        }
+
+        return mask;
+    }
+
+    /** Attacks by walking the rays up to the first met pieces (including them) */
+
+    private static long slowAttacks(final int square, final long occupied, final int[] dx, final int[] dy) {
+        final int x = square % 8;
+        final int y = square / 8;
+        long attacks = 0;
+
+        for (int direction = 0; direction < dx.length; ++direction) {
+            int cx = x + dx[direction];
+            int cy = y + dy[direction];
+
+            while (cx >= 0 && cx < 8 && cy >= 0 && cy < 8) {
+                final long bit = 1L << (cy * 8 + cx);
+                attacks |= bit;
+                if ((occupied & bit) != 0) break;
+                cx += dx[direction];
+                cy += dy[direction];
+            }
+        }
+
+        return attacks;
+    }
+}
+
+/**
+ * Stores pieces' indices in the hash map by packed coordinates
+ * and lines with compressed ids, so memory is proportional
+ * to the number of pieces and boards up to 10^6 x 10^6 are supported
+ */
+
+final class SparseOccupancy extends Occupancy {
+
+    /** Indices of pieces by their packed coordinates */
+    private final LongIntHashMap cells = new LongIntHashMap();
+
+    /** Constructs empty board by the number of rows (columns) */
+
+    SparseOccupancy(final int boardSize) { super(boardSize, true); }
+
+    @Override
+    boolean isSparse() { return true; }
+
+    @Override
+    int indexOf(final int x, final int y) {
+        if (x < 1 || x > size || y < 1 || y > size) return -1;
+        return cells.get(pack(x, y));
+    }
+
+    @Override
+    protected void setCell(final int x, final int y, final int index) { cells.put(pack(x, y), index); }
+
+    @Override
+    protected void clearCell(final int x, final int y) { cells.remove(pack(x, y)); }
+}
+
+/**
+ * Families of lines that are indexed by {@link Occupancy}.
+ * Every line is stored as sorted keys (x for all families, except columns),
+ * so the key's difference is the distance between two cells on the line
+ */
+
+enum LineFamily {
+    ROWS(1, 0) {
+        @Override
+        int keyOf(final int x, final int y) { return x; }
+
+        @Override
+        int xOf(final int line, final int key, final int boardSize) { return key; }
+
+        @Override
+        int yOf(final int line, final int key, final int boardSize) { return line + 1; }
+
+        @Override
+        int distanceBefore(final int x, final int y, final int boardSize) { return x - 1; }
+
+        @Override
+        int distanceAfter(final int x, final int y, final int boardSize) { return boardSize - x; }
+
+        @Override
+        boolean isSlidingFor(final ChessPiece piece) { return piece instanceof RookMovement; }
+    },
+
+    COLUMNS(0, 1) {
+        @Override
+        int keyOf(final int x, final int y) { return y; }
+
+        @Override
+        int xOf(final int line, final int key, final int boardSize) { return line + 1; }
+
+        @Override
+        int yOf(final int line, final int key, final int boardSize) { return key; }
+
+        @Override
+        int distanceBefore(final int x, final int y, final int boardSize) { return y - 1; }
+
+        @Override
+        int distanceAfter(final int x, final int y, final int boardSize) { return boardSize - y; }
+
+        @Override
+        boolean isSlidingFor(final ChessPiece piece) { return piece instanceof RookMovement; }
+    },
+
+    DIAGONALS(1, 1) {
+        @Override
+        int keyOf(final int x, final int y) { return x; }
+
+        @Override
+        int xOf(final int line, final int key, final int boardSize) { return key; }
+
+        @Override
+        int yOf(final int line, final int key, final int boardSize) { return key + line - boardSize + 1; }
+
+        @Override
+        int distanceBefore(final int x, final int y, final int boardSize) { return Math.min(x - 1, y - 1); }
+
+        @Override
+        int distanceAfter(final int x, final int y, final int boardSize) {
+            return Math.min(boardSize - x, boardSize - y);
+        }
+
+        @Override
+        boolean isSlidingFor(final ChessPiece piece) { return piece instanceof BishopMovement; }
+    },
+
+    ANTI_DIAGONALS(1, -1) {
+        @Override
+        int keyOf(final int x, final int y) { return x; }
+
+        @Override
+        int xOf(final int line, final int key, final int boardSize) { return key; }
+
+        @Override
+        int yOf(final int line, final int key, final int boardSize) { return line + 2 - key; }
+
+        @Override
+        int distanceBefore(final int x, final int y, final int boardSize) { return Math.min(x - 1, boardSize - y); }
+
+        @Override
+        int distanceAfter(final int x, final int y, final int boardSize) { return Math.min(boardSize - x, y - 1); }
+
+        @Override
+        boolean isSlidingFor(final ChessPiece piece) { return piece instanceof BishopMovement; }
+    };
+
+    /** Column's step along the line in the direction of increasing keys */
+    final int dx;
+
+    /** Row's step along the line in the direction of increasing keys */
+    final int dy;
+
+    LineFamily(final int dx, final int dy) {
+        this.dx = dx;
+        this.dy = dy;
+    }
+
+    /** Key of the cell on its line */
+    abstract int keyOf(final int x, final int y);
+
+    /** Column of the cell by its line and key */
+    abstract int xOf(final int line, final int key, final int boardSize);
+
+    /** Row of the cell by its line and key */
+    abstract int yOf(final int line, final int key, final int boardSize);
+
+    /** Distance to the border in the direction of decreasing keys */
+    abstract int distanceBefore(final int x, final int y, final int boardSize);
+
+    /** Distance to the border in the direction of increasing keys */
+    abstract int distanceAfter(final int x, final int y, final int boardSize);
+
+    /** Checks if piece is able to move along the lines of this family */
+    abstract boolean isSlidingFor(final ChessPiece piece);
+}
+
+/**
+ * Sorted coordinates of pieces for every line of the same direction.
+ * Allows to find the first met piece on the way with binary search
+ */
+
+final class LineIndex {
+
+    /** Returned if there are no pieces in the direction */
+    static final int NONE = 0;
+
+    /**
+     * Compressed slots of lines by lines' ids.
+     * It is null for dense index, where lines are stored by their ids themselves
+     */
+
+    private final LongIntHashMap slots;
+
+    /** Ids of lines by their slots (only for sparse index) */
+    private int[] ids;
+
+    /** Number of used slots */
+    private int slotsNumber;
+
+    /** Sorted coordinates of every line's slot, allocated with the first piece */
+    private int[][] lines;
+
+    /** Number of pieces on every line's slot */
+    private int[] counts;
+
+    /** Constructs empty dense index by the number of lines */
+
+    LineIndex(final int linesNumber) {
+        slots = null;
+        slotsNumber = linesNumber;
+        lines = new int[linesNumber][];
+        counts = new int[linesNumber];
+    }
+
+    /**
+     * Constructs empty sparse index.
+     * Lines get compressed slots when the first piece is added to them,
+     * so memory is proportional to the number of pieces, not the board
+     */
+
+    private LineIndex() {
+        slots = new LongIntHashMap();
+        ids = new int[16];
+        lines = new int[16][];
+        counts = new int[16];
+    }
+
+    /** Constructs empty sparse index */
+
+    static LineIndex sparse() { return new LineIndex(); }
+
+    /**
+     * Number of lines' slots in the index.
+     * For dense index, it is the number of lines,
+     * for sparse one, it is the number of lines that ever had pieces
+     */
+
+    int slotsNumber() { return slotsNumber; }
+
+    /** Gets line's id by its slot */
+
+    int lineAt(final int slot) { return slots == null ? slot : ids[slot]; }
+
+    /** Number of coordinates on the line */
+
+    int count(final int line) {
+        final int slot = slotOf(line);
+        return slot == LongIntHashMap.MISSING ? 0 : counts[slot];
+    }
+
+    /** Gets coordinate on the line by its order */
+
+    int get(final int line, final int order) { return lines[slotOf(line)][order]; }
+
+    /**
+     * Appends coordinate to the end of the line.
+     * Line is not sorted until {@link LineIndex#sortLines()}
+     */
+
+    void append(final int line, final int coordinate) {
+        final int slot = slotOrNew(line);
+        int[] coordinates = lines[slot];
+        final int count = counts[slot];
+
+        if (coordinates == null)
+            coordinates = lines[slot] = new int[4];
+        else if (count == coordinates.length)
+            coordinates = lines[slot] = Arrays.copyOf(coordinates, count * 2);
+
+        coordinates[count] = coordinate;
+        counts[slot] = count + 1;
+    }
+
+    /** Sorts all lines after {@link LineIndex#append(int, int)} */
+
+    void sortLines() {
+        for (int slot = 0; slot < slotsNumber; ++slot)
+            if (counts[slot] > 1)
+                Arrays.sort(lines[slot], 0, counts[slot]);
+    }
+
+    /** Inserts coordinate to the line keeping it sorted */
+
+    void add(final int line, final int coordinate) {
+        final int slot = slotOrNew(line);
+        int[] coordinates = lines[slot];
+        final int count = counts[slot];
+
+        if (coordinates == null)
+            coordinates = lines[slot] = new int[4];
+        else if (count == coordinates.length)
+            coordinates = lines[slot] = Arrays.copyOf(coordinates, count * 2);
+
+        final int insertion = -Arrays.binarySearch(coordinates, 0, count, coordinate) - 1;
+        System.arraycopy(coordinates, insertion, coordinates, insertion + 1, count - insertion);
+        coordinates[insertion] = coordinate;
+        counts[slot] = count + 1;
+    }
+
+    /** Removes coordinate from the line, if it is present */
+
+    void remove(final int line, final int coordinate) {
+        final int slot = slotOf(line);
+        if (slot == LongIntHashMap.MISSING) return;
+
+        final int count = counts[slot];
+        if (count == 0) return;
+
+        final int[] coordinates = lines[slot];
+        final int found = Arrays.binarySearch(coordinates, 0, count, coordinate);
+        if (found < 0) return;
+
+        System.arraycopy(coordinates, found + 1, coordinates, found, count - found - 1);
+        counts[slot] = count - 1;
+    }
+
+    /**
+     * Gets the closest coordinate on the line that is greater than given one
+     * @return found coordinate or {@link LineIndex#NONE}
+     */
+
+    int higher(final int line, final int coordinate) {
+        final int slot = slotOf(line);
+        if (slot == LongIntHashMap.MISSING) return NONE;
+
+        final int count = counts[slot];
+        if (count == 0) return NONE;
+
+        final int found = Arrays.binarySearch(lines[slot], 0, count, coordinate);
+        final int next = found >= 0 ? found + 1 : -found - 1;
+        return next < count ? lines[slot][next] : NONE;
+    }
+
+    /**
+     * Gets the closest coordinate on the line that is less than given one
+     * @return found coordinate or {@link LineIndex#NONE}
+     */
+
+    int lower(final int line, final int coordinate) {
+        final int slot = slotOf(line);
+        if (slot == LongIntHashMap.MISSING) return NONE;
+
+        final int count = counts[slot];
+        if (count == 0) return NONE;
+
+        final int found = Arrays.binarySearch(lines[slot], 0, count, coordinate);
+        final int previous = found >= 0 ? found - 1 : -found - 2;
+        return previous >= 0 ? lines[slot][previous] : NONE;
+    }
+
+    /** Gets slot of the line or {@link LongIntHashMap#MISSING} */
+
+    private int slotOf(final int line) { return slots == null ? line : slots.get(line); }
+
+    /** Gets slot of the line, compressing the new line into the next free slot */
+
+    private int slotOrNew(final int line) {
+        if (slots == null)
+            return line;
+
+        final int slot = slots.get(line);
+
+        if (slot != LongIntHashMap.MISSING)
+            return slot;
+
+        if (slotsNumber == counts.length) {
+            final int capacity = slotsNumber * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+        }
+
+        slots.put(line, slotsNumber);
+        ids[slotsNumber] = line;
+        return slotsNumber++;
+    }
+}
+
+/**
+ * Open addressing hash map from long keys to non-negative int values.
+ * Keys are placed with linear probing, so there are neither boxes nor entries
+ */
+
+final class LongIntHashMap {
+
+    /** Returned if there is no value for the key */
+    static final int MISSING = -1;
+
+    private static final float LOAD_FACTOR = 0.5F;
+
+    private long[] keys = new long[16];
+
+    /** Values plus 1, so 0 marks the free bucket */
+    private int[] values = new int[16];
+
+    private int size = 0;
+
+    /** Number of stored keys */
+
+    int size() { return size; }
+
+    /** Gets value by the key or {@link LongIntHashMap#MISSING} */
+
+    int get(final long key) {
+        final int mask = keys.length - 1;
+
+        for (int bucket = bucketOf(key, mask); values[bucket] != 0; bucket = (bucket + 1) & mask)
+            if (keys[bucket] == key)
+                return values[bucket] - 1;
+
+        return MISSING;
+    }
+
+    /** Associates non-negative value with the key */
+
+    void put(final long key, final int value) {
+        if (size + 1 > keys.length * LOAD_FACTOR)
+            rehash(keys.length * 2);
+
+        final int mask = keys.length - 1;
+        int bucket = bucketOf(key, mask);
+
+        for (; values[bucket] != 0; bucket = (bucket + 1) & mask) {
+            if (keys[bucket] == key) {
+                values[bucket] = value + 1;
+                return;
+            }
+        }
+
+        keys[bucket] = key;
+        values[bucket] = value + 1;
+        ++size;
+    }
+
+    /**
+     * Removes the key if it is present.
+     * Following keys of the cluster are shifted back,
+     * so probing never stops at the removed bucket
+     */
+
+    void remove(final long key) {
+        final int mask = keys.length - 1;
+        int bucket = bucketOf(key, mask);
+
+        while (values[bucket] != 0 && keys[bucket] != key)
+            bucket = (bucket + 1) & mask;
+
+        if (values[bucket] == 0)
+            return;
+
+        --size;
+
+        for (int next = (bucket + 1) & mask; values[next] != 0; next = (next + 1) & mask) {
+            final int home = bucketOf(keys[next], mask);
+
+            // Key can be moved to the free bucket only if
+            // its home is not between the free bucket and itself
+
+            if (((next - home) & mask) >= ((next - bucket) & mask)) {
+                keys[bucket] = keys[next];
+                values[bucket] = values[next];
+                bucket = next;
+            }
+        }
+
+        values[bucket] = 0;
+    }
+
+    private void rehash(final int capacity) {
+        final long[] oldKeys = keys;
+        final int[] oldValues = values;
+
+        keys = new long[capacity];
+        values = new int[capacity];
+
+        final int mask = capacity - 1;
+
+        for (int i = 0; i < oldKeys.length; ++i) {
+            if (oldValues[i] == 0) continue;
+
+            int bucket = bucketOf(oldKeys[i], mask);
+            while (values[bucket] != 0) bucket = (bucket + 1) & mask;
+
+            keys[bucket] = oldKeys[i];
+            values[bucket] = oldValues[i];
+        }
+    }
+
+    /** Fibonacci hashing of the key */
+
+    private static int bucketOf(final long key, final int mask) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+}
+
+/**
+ * Numbers of attackers of every cell for both colors.
+ * Map has all cells of the board, so it is used only with {@link DenseOccupancy}.
+ * Sliding pieces attack cells of their rays up to the first met piece (including it),
+ * knights and kings attack all their jump targets, pawns attack only diagonal cells.
+ * Map is updated on every change of the board, so check of the cell is O(1)
+ */
+
+final class AttackMap {
+
+    /** Board itself */
+    private final Occupancy positions;
+
+    /** Number of rows (columns) of the board */
+    private final int size;
+
+    /**
+     * Attackers by colors' ordinals and packed cells.
+     * There are at most 8 rays and 8 knight jumps that reach one cell
+     */
+
+    private final byte[][] attackers;
+
+    /** Constructs map from all pieces on the board */
+
+    AttackMap(final Occupancy positions) {
+        this.positions = positions;
+        size = positions.size();
+        attackers = new byte[PieceColor.values().length][size * size];
+
+        for (int i = 0; i < positions.piecesNumber(); ++i) {
+            final ChessPiece piece = positions.get(i);
+            if (piece != null) apply(piece, 1);
+        }
+    }
+
+    /**
+     * Checks if cell is attacked by any piece of given color
+     * @param x column of the cell
+     * @param y row of the cell
+     * @param byColor color of attackers
+     */
+
+    boolean isAttacked(final int x, final int y, final PieceColor byColor) {
+        return attackers[byColor.ordinal()][cellOf(x, y)] != 0;
+    }
+
+    /**
+     * Updates map before the piece is removed from the board.
+     * Rays that were stopped by the piece now pass through its cell
+     */
+
+    void beforeRemove(final ChessPiece piece) {
+        apply(piece, -1);
+        updateRaysThrough(piece.getPosition(), 1);
+    }
+
+    /**
+     * Updates map after the piece is added to the board.
+     * Rays that passed through its cell are now stopped by the piece
+     */
+
+    void afterAdd(final ChessPiece piece) {
+        apply(piece, 1);
+        updateRaysThrough(piece.getPosition(), -1);
+    }
+
+    /** Gets index of the cell in the map, as with {@link Occupancy#pack(int, int)} */
+
+    private int cellOf(final int x, final int y) { return (x - 1) * size + (y - 1); }
+
+    /** Adds (delta = 1) or removes (delta = -1) all attacks of the piece */
+
+    private void apply(final ChessPiece piece, final int delta) {
+        final PiecePosition position = piece.getPosition();
+        final int x = position.getX();
+        final int y = position.getY();
+        final byte[] colorAttackers = attackers[piece.getColor().ordinal()];
+
+        if (piece instanceof SimpleMovement) {
+            final JumpTable table = ((SimpleMovement) piece).getSimpleCaptureTable();
+
+            for (int mask = table.inBoundsMask(x, y, size); mask != 0; mask &= mask - 1) {
+                final int offset = Integer.numberOfTrailingZeros(mask);
+                colorAttackers[cellOf(x + table.dx(offset), y + table.dy(offset))] += delta;
+            }
+
+            return;
+        }
+
+        for (final LineFamily family : LineFamily.values()) {
+            if (!family.isSlidingFor(piece)) continue;
+            applyRay(x, y, family, 1, colorAttackers, delta);
+            applyRay(x, y, family, -1, colorAttackers, delta);
+        }
+    }
+
+    /**
+     * Updates rays of the sliding pieces that reach the cell.
+     * Part of the ray behind the cell (up to the next met piece) is
+     * either opened (delta = 1) or closed (delta = -1)
+     */
+
+    private void updateRaysThrough(final PiecePosition position, final int delta) {
+        final int x = position.getX();
+        final int y = position.getY();
+
+        for (final LineFamily family : LineFamily.values()) {
+            for (int sign = -1; sign <= 1; sign += 2) {
+                final int key = positions.closestKey(family, x, y, sign);
+                if (key == LineIndex.NONE) continue;
+
+                final int line = positions.lineOf(family, x, y);
+                final ChessPiece piece = positions.get(family.xOf(line, key, size), family.yOf(line, key, size));
+
+                if (family.isSlidingFor(piece))
+                    applyRay(x, y, family, -sign, attackers[piece.getColor().ordinal()], delta);
+            }
+        }
+    }
+
+    /**
+     * Adds delta to all cells after the given one in the direction,
+     * up to the first met piece (including it) or the border
+     * @param sign 1 for the direction of increasing keys, -1 otherwise
+     */
+
+    private void applyRay(
+            final int x,
+            final int y,
+            final LineFamily family,
+            final int sign,
+            final byte[] colorAttackers,
+            final int delta
+    ) {
+        final int metKey = positions.closestKey(family, x, y, sign);
+
+        final int distance = metKey != LineIndex.NONE ?
+                Math.abs(metKey - family.keyOf(x, y)) :
+                sign > 0 ? family.distanceAfter(x, y, size) : family.distanceBefore(x, y, size);
+
+        final int dx = family.dx * sign;
+        final int dy = family.dy * sign;
+
+        for (int step = 1; step <= distance; ++step)
+            colorAttackers[cellOf(x + dx * step, y + dy * step)] += delta;
+    }
+}
+
+/**
+ * Chess Board itself.
+ * BTW, it is better to mark it as singleton
+ * and use a dependency injection framework
+ */
+
+final class Board {
+    static final int MIN_LENGTH = 3;
+    static final int MAX_LENGTH = 1_000_000;
+
+    /** Maximum size of the board that can be stored in the dense grid */
+    static final int MAX_DENSE_LENGTH = 1000;
+
+    /**
+     * Boards with more cells per piece are stored sparsely:
+     * dense grid and attack maps would be mostly empty
+     */
+
+    static final int MAX_DENSE_CELLS_PER_PIECE = 64;
+
+    /** Maximum number of pieces that are evaluated by one fork/join task */
+    static final int PARALLEL_TASK_SIZE = 4096;
+
+    /**
+     * Buffers for {@link MoveState}s of every thread that evaluates pieces,
+     * so counting does not allocate anything once buffer is created
+     */
+
+    private static final ThreadLocal<int[]> MOVE_STATES =
+            ThreadLocal.withInitial(() -> new int[LongDistanceMovement.DIRECTIONS]);
+
+    /** All line families, {@link LineFamily#values()} copies the array on every call */
+    private static final LineFamily[] LINE_FAMILIES = LineFamily.values();
+
+    /**
+     * Maximum number of pieces that attack one cell:
+     * the closest pieces on 8 rays and 8 knights
+     */
+
+    static final int MAX_ATTACKERS = 16;
+
+    /** Buffers for attackers' indices of every thread */
+
+    private static final ThreadLocal<int[]> ATTACKERS = ThreadLocal.withInitial(() -> new int[MAX_ATTACKERS]);
+
+    /** Marks counts in the cache that have to be evaluated */
+    private static final int NOT_CACHED = -1;
+
+    /**
+     * Tables of all simple movements.
+     * Used to find pieces that jump to the changed cell
+     */
+
+    private static final JumpTable[] JUMP_TABLES = {
+            Knight.MOVES,
+            King.MOVES,
+            Pawn.WHITE_MOVES,
+            Pawn.BLACK_MOVES,
+            Pawn.WHITE_CAPTURES,
+            Pawn.BLACK_CAPTURES
+    };
+
+    /** Stores all pieces by their positions */
+
+    private final Occupancy positionsToPieces;
+
+    /** Number of rows (columns) of the board */
+
+    private final int size;
+
+    /** Cached numbers of moves by pieces' indices or {@link Board#NOT_CACHED} */
+
+    private int[] movesCache = new int[0];
+
+    /** Cached numbers of captures by pieces' indices or {@link Board#NOT_CACHED} */
+
+    private int[] capturesCache = new int[0];
+
+    /**
+     * Becomes true after the first evaluation of all pieces.
+     * Since then, only invalidated counts are evaluated again
+     */
+
+    private boolean areAllCountsCached = false;
+
+    /** Attackers of all cells, built with the first query and updated on every change */
+
+    private AttackMap attacks;
+
+    /**
+     * Zobrist hash of the position: XOR of keys of board size
+     * and all pieces (by their types, colors and cells)
+     */
+
+    private long hash;
+
+    /** Pieces captured by made moves (null for quiet moves), the last move is on the top */
+    private final ArrayList<ChessPiece> capturedPieces = new ArrayList<>();
+
+    /** Indices of captured pieces, aligned with {@link Board#capturedPieces} */
+    private int[] capturedIndices = new int[16];
+
+    /**
+     * Constructs board by the number of rows (columns).
+     * Boards larger than {@link Board#MAX_DENSE_LENGTH} are sparse
+     */
+
+    public Board(final int boardSize) { this(boardSize, boardSize > MAX_DENSE_LENGTH); }
+
+    /**
+     * Constructs board by the number of rows (columns)
+     * @param isSparse whether memory should be proportional
+     * to the number of pieces instead of the area of the board
+     * @see Board#shouldBeSparse(int, int)
+     */
+
+    public Board(final int boardSize, final boolean isSparse) {
+        size = boardSize;
+        positionsToPieces = Occupancy.create(boardSize, isSparse);
+        hash = mix(boardSize);
+    }
+
+    /**
+     * Chooses the kind of the board by its density
+     * @param boardSize number of rows (columns)
+     * @param piecesNumber expected number of pieces
+     * @return true if the board is too large for the dense grid
+     * or there are more than {@link Board#MAX_DENSE_CELLS_PER_PIECE} cells per piece
+     */
+
+    static boolean shouldBeSparse(final int boardSize, final int piecesNumber) {
+        return boardSize > MAX_DENSE_LENGTH ||
+                (long) boardSize * boardSize > (long) MAX_DENSE_CELLS_PER_PIECE * piecesNumber;
+    }
+
+    /**
+     * Gets the number of all possible moves (including captures).
+     * Counts of pieces on the board are cached until
+     * the board is changed around them
+     * @param piece piece to get the number of moves
+     * @return the number of all possible moves for the piece
+     */
+
+    public int getPiecePossibleMovesCount(final ChessPiece piece) {
+        final int index = indexOf(piece);
+
+        if (index == -1)
+            return countMoves(piece);
+
+        final int cached = movesCache[index];
+        if (cached != NOT_CACHED) return cached;
+        return movesCache[index] = countMoves(piece);
+    }
+
+    /**
+     * Gets the number of all possible captures.
+     * Counts of pieces on the board are cached until
+     * the board is changed around them
+     * @param piece piece to get the number of captures
+     * @return the number of all possible captures
+     */
+
+    public int getPiecePossibleCapturesCount(final ChessPiece piece) {
+        final int index = indexOf(piece);
+
+        if (index == -1)
+            return countCaptures(piece);
+
+        final int cached = capturesCache[index];
+        if (cached != NOT_CACHED) return cached;
+        return capturesCache[index] = countCaptures(piece);
+    }
+
+    /** Evaluates the number of moves of the piece, timing it if metrics are enabled */
+
+    private int countMoves(final ChessPiece piece) {
+        if (!Metrics.ENABLED)
+            return piece.getMovesCount(positionsToPieces, size, MOVE_STATES.get());
+
+        final long start = System.nanoTime();
+        final int moves = piece.getMovesCount(positionsToPieces, size, MOVE_STATES.get());
+        Metrics.recordCount(piece.getType(), Metrics.Count.MOVES, System.nanoTime() - start);
+        return moves;
+    }
+
+    /** Evaluates the number of captures of the piece, timing it if metrics are enabled */
+
+    private int countCaptures(final ChessPiece piece) {
+        if (!Metrics.ENABLED)
+            return piece.getCapturesCount(positionsToPieces, size, MOVE_STATES.get());
+
+        final long start = System.nanoTime();
+        final int captures = piece.getCapturesCount(positionsToPieces, size, MOVE_STATES.get());
+        Metrics.recordCount(piece.getType(), Metrics.Count.CAPTURES, System.nanoTime() - start);
+        return captures;
+    }
+
+    /**
+     * Adds piece to the board.
+     * @param piece piece to add
+     * @throws InvalidPiecePositionException
+     * if the position is already assigned to another piece
+     */
+
+    public void addPiece(final ChessPiece piece) throws InvalidPiecePositionException {
+        final PiecePosition position = piece.getPosition();
+
+        if (getPiece(position) != null)
+            throw new InvalidPiecePositionException();
+
+        positionsToPieces.put(piece);
+        ensureCacheCapacity();
+        invalidateAround(position.getX(), position.getY());
+        if (attacks != null) attacks.afterAdd(piece);
+        hash ^= zobristKey(piece);
+    }
+
+    /**
+     * Adds piece to the empty board that is being loaded.
+     * Neither counts are invalidated nor lines are sorted,
+     * {@link Board#finishLoading()} must be called after the last piece
+     * @throws InvalidPiecePositionException
+     * if the position is already assigned to another piece
+     */
+
+    void appendLoadedPiece(final ChessPiece piece) throws InvalidPiecePositionException {
+        final PiecePosition position = piece.getPosition();
+
+        if (positionsToPieces.indexOf(position.getX(), position.getY()) != -1)
+            throw new InvalidPiecePositionException();
+
+        positionsToPieces.putUnsorted(piece);
+        hash ^= zobristKey(piece);
+    }
+
+    /** Sorts lines and grows caches after loading of all pieces */
+
+    void finishLoading() {
+        positionsToPieces.sortLines();
+        ensureCacheCapacity();
+    }
+
+    /**
+     * Removes piece from the board.
+     * Its index becomes empty and has zero counts
+     * @param position position of the piece to remove
+     * @return removed piece or null if the position is empty
+     */
+
+    public ChessPiece removePiece(final PiecePosition position) {
+        final int x = position.getX();
+        final int y = position.getY();
+        final ChessPiece piece = positionsToPieces.get(x, y);
+
+        if (piece == null)
+            return null;
+
+        if (attacks != null) attacks.beforeRemove(piece);
+        final int index = positionsToPieces.remove(x, y);
+        movesCache[index] = 0;
+        capturesCache[index] = 0;
+        invalidateAround(x, y);
+        hash ^= zobristKey(piece);
+        return piece;
+    }
+
+    /**
+     * Moves piece to the empty cell.
+     * Moved piece keeps the index of the original one
+     * @param from position of the piece to move
+     * @param to new position of the piece
+     * @return moved piece
+     * @throws InvalidPiecePositionException if there is no piece on `from`
+     * or `to` is either out of the board or occupied
+     */
+
+    public ChessPiece movePiece(final PiecePosition from, final PiecePosition to) throws InvalidPiecePositionException {
+        final ChessPiece piece = getPiece(from);
+
+        if (piece == null || !to.isValid(size) || getPiece(to) != null)
+            throw new InvalidPiecePositionException();
+
+        if (attacks != null) attacks.beforeRemove(piece);
+        final int index = positionsToPieces.remove(from.getX(), from.getY());
+        final ChessPiece moved = piece.getType().create(to, piece.getColor());
+        positionsToPieces.put(moved, index);
+        if (attacks != null) attacks.afterAdd(moved);
+        hash ^= zobristKey(piece) ^ zobristKey(moved);
+
+        invalidate(index);
+        invalidateAround(from.getX(), from.getY());
+        invalidateAround(to.getX(), to.getY());
+        return moved;
+    }
+
+    /** Gets piece by its position */
+
+    public ChessPiece getPiece(final PiecePosition position) {
+        return positionsToPieces.get(position.getX(), position.getY());
+    }
+
+    /**
+     * Gets piece by its index in the order of addition
+     * @return piece or null if it was removed
+     */
+
+    public ChessPiece getPiece(final int index) { return positionsToPieces.get(index); }
+
+    /**
+     * Finds all pieces (of both colors) that attack the cell.
+     * Sliding attackers are the closest pieces on 8 rays through the cell,
+     * found with binary search on the line indices, so it takes O(log n) per direction.
+     * Jumping attackers are taken from cells at the reversed offsets of the jump tables
+     * @param x column of the cell
+     * @param y row of the cell
+     * @param attackers buffer for pieces' indices
+     * (at least {@link Board#MAX_ATTACKERS} long)
+     * @return the number of attackers written to the buffer
+     * @see Board#getPiece(int)
+     */
+
+    public int attackersOf(final int x, final int y, final int[] attackers) {
+        int attackersNumber = 0;
+
+        for (final LineFamily family : LINE_FAMILIES) {
+            final int line = positionsToPieces.lineOf(family, x, y);
+
+            for (int sign = -1; sign <= 1; sign += 2) {
+                final int key = positionsToPieces.closestKey(family, x, y, sign);
+                if (key == LineIndex.NONE) continue;
+
+                final int index = positionsToPieces.indexOf(family.xOf(line, key, size), family.yOf(line, key, size));
+
+                if (family.isSlidingFor(positionsToPieces.get(index)))
+                    attackers[attackersNumber++] = index;
+            }
+        }
+
+        for (final JumpTable table : JUMP_TABLES) {
+            for (int offset = 0; offset < table.size(); ++offset) {
+                final int index = positionsToPieces.indexOf(x - table.dx(offset), y - table.dy(offset));
+                if (index == -1) continue;
+
+                final ChessPiece piece = positionsToPieces.get(index);
+
+                if (piece instanceof SimpleMovement && ((SimpleMovement) piece).getSimpleCaptureTable() == table)
+                    attackers[attackersNumber++] = index;
+            }
+        }
+
+        return attackersNumber;
+    }
+
+    /**
+     * Same as {@link Board#attackersOf(int, int, int[])},
+     * but allocates the array of the exact size
+     * @return indices of all pieces that attack the cell
+     */
+
+    public int[] attackersOf(final int x, final int y) {
+        final int[] attackers = ATTACKERS.get();
+        return Arrays.copyOf(attackers, attackersOf(x, y, attackers));
+    }
+
+    /** Gets the number of rows (columns) */
+
+    public int getSize() { return size; }
+
+    /** Gets the number of pieces' slots, including slots of removed pieces */
+
+    public int getPiecesNumber() { return positionsToPieces.piecesNumber(); }
+
+    /**
+     * Makes a new board with the same pieces.
+     * Slots of removed pieces are not kept
+     */
+
+    public Board copy() {
+        final Board copy = new Board(size, positionsToPieces.isSparse());
+
+        for (int i = 0; i < positionsToPieces.piecesNumber(); ++i) {
+            final ChessPiece piece = positionsToPieces.get(i);
+            if (piece == null) continue;
+
+            copy.positionsToPieces.put(piece);
+            copy.hash ^= zobristKey(piece);
+        }
+
+        copy.ensureCacheCapacity();
+        return copy;
+    }
+
+    /**
+     * Makes the move, capturing the opponent's piece on the target cell.
+     * Move is recorded, so it can be taken back with {@link Board#unmakeMove(long)}
+     * @param move packed {@link Move}
+     * @throws InvalidPiecePositionException if there is no piece to move
+     * or the target cell is out of the board
+     */
+
+    public void makeMove(final long move) throws InvalidPiecePositionException {
+        final PiecePosition to = new PiecePosition(Move.toX(move), Move.toY(move));
+        final ChessPiece captured = getPiece(to);
+        final int capturedIndex = captured == null ? -1 : indexOf(captured);
+
+        if (captured != null)
+            removePiece(to);
+
+        try {
+            movePiece(new PiecePosition(Move.fromX(move), Move.fromY(move)), to);
+        } catch (final InvalidPiecePositionException e) {
+            if (captured != null) restorePiece(captured, capturedIndex);
+            throw e;
+        }
+
+        final int depth = capturedPieces.size();
+
+        if (depth == capturedIndices.length)
+            capturedIndices = Arrays.copyOf(capturedIndices, depth * 2);
+
+        capturedPieces.add(captured);
+        capturedIndices[depth] = capturedIndex;
+    }
+
+    /**
+     * Takes back the last made move
+     * @param move packed {@link Move} that was passed to {@link Board#makeMove(long)}
+     * @throws InvalidPiecePositionException if there are no made moves
+     * or the moved piece is not on the target cell
+     */
+
+    public void unmakeMove(final long move) throws InvalidPiecePositionException {
+        final int depth = capturedPieces.size() - 1;
+
+        if (depth < 0)
+            throw new InvalidPiecePositionException();
+
+        movePiece(
+                new PiecePosition(Move.toX(move), Move.toY(move)),
+                new PiecePosition(Move.fromX(move), Move.fromY(move))
+        );
+
+        final ChessPiece captured = capturedPieces.remove(depth);
+        if (captured != null) restorePiece(captured, capturedIndices[depth]);
+    }
+
+    /**
+     * Appends all legal moves of the side to the buffer.
+     * Move is legal if it does not capture the king
+     * and does not leave own king under attack
+     * @param side color of pieces to move
+     * @param moves buffer for generated moves
+     * @return the number of appended moves
+     * @throws InvalidPiecePositionException if generated move can't be made
+     */
+
+    public int generateLegalMoves(final PieceColor side, final MoveList moves) throws InvalidPiecePositionException {
+        final PieceColor opponent = side == PieceColor.WHITE ? PieceColor.BLACK : PieceColor.WHITE;
+        final int[] states = MOVE_STATES.get();
+        final int start = moves.size();
+
+        King king = null;
+
+        for (int i = 0; i < positionsToPieces.piecesNumber(); ++i) {
+            final ChessPiece piece = positionsToPieces.get(i);
+            if (piece == null || piece.getColor() != side) continue;
+
+            if (piece instanceof King) king = (King) piece;
+            piece.generateMoves(positionsToPieces, size, states, moves);
+        }
+
+        final int kingSlot = king == null ? -1 : indexOf(king);
+
+        // Filtering in place: legal moves are shifted to the beginning
+
+        int legal = start;
+
+        for (int i = start; i < moves.size(); ++i) {
+            final long move = moves.get(i);
+            final ChessPiece target = positionsToPieces.get(Move.toX(move), Move.toY(move));
+
+            if (target instanceof King)
+                continue;
+
+            if (kingSlot != -1) {
+                makeMove(move);
+                final PiecePosition kingPosition = positionsToPieces.get(kingSlot).getPosition();
+                final boolean isInCheck = isAttacked(kingPosition.getX(), kingPosition.getY(), opponent);
+                unmakeMove(move);
+                if (isInCheck) continue;
+            }
+
+            moves.set(legal++, move);
+        }
+
+        moves.truncate(legal);
+        return legal - start;
+    }
+
+    /**
+     * Gets Zobrist hash of the position.
+     * It is updated on every change of the board
+     */
+
+    public long getHash() { return hash; }
+
+    /**
+     * Same as {@link Board#computeAllCounts()}, but repeated positions
+     * are served from the transposition table
+     * @param transpositions table with counts of previously evaluated positions
+     * @return counts in the order of addition of pieces
+     */
+
+    public BoardCounts computeAllCounts(final TranspositionTable transpositions) {
+        final int piecesNumber = positionsToPieces.piecesNumber();
+        final long[] features = new long[piecesNumber];
+
+        for (int i = 0; i < piecesNumber; ++i) {
+            final ChessPiece piece = positionsToPieces.get(i);
+            features[i] = piece == null ? -1 : featureOf(piece);
+        }
+
+        final BoardCounts cached = transpositions.get(hash, features);
+        if (cached != null) return cached;
+
+        final BoardCounts counts = computeAllCounts();
+        transpositions.put(hash, features, counts);
+        return counts;
+    }
+
+    /**
+     * Checks if the cell is attacked by any piece of given color.
+     * For dense board, the first query builds {@link AttackMap}, then it takes O(1).
+     * Sparse board has no attack map, so attackers are searched
+     * on the lines and jump targets through the cell
+     * @param x column of the cell
+     * @param y row of the cell
+     * @param byColor color of attackers
+     */
+
+    public boolean isAttacked(final int x, final int y, final PieceColor byColor) {
+        if (positionsToPieces.isSparse())
+            return isAttackedDirectly(x, y, byColor);
+
+        if (attacks == null) attacks = new AttackMap(positionsToPieces);
+        return attacks.isAttacked(x, y, byColor);
+    }
+
+    /**
+     * Gets the number of king's moves (including captures)
+     * to cells that are not attacked by the opponent.
+     * Cells behind the king on the ray of the opponent's sliding piece
+     * are attacked too, because the king does not block it after the move
+     * @param king king on the board
+     * @return the number of safe moves
+     */
+
+    public int getKingSafeMovesCount(final King king) {
+        final PiecePosition position = king.getPosition();
+        final int x = position.getX();
+        final int y = position.getY();
+        final PieceColor color = king.getColor();
+        final PieceColor opponent = color == PieceColor.WHITE ? PieceColor.BLACK : PieceColor.WHITE;
+        final JumpTable table = king.getSimpleMoveTable();
+
+        int moves = 0;
+
+        for (int mask = table.inBoundsMask(x, y, size); mask != 0; mask &= mask - 1) {
+            final int offset = Integer.numberOfTrailingZeros(mask);
+            final int dx = table.dx(offset);
+            final int dy = table.dy(offset);
+            final ChessPiece target = positionsToPieces.get(x + dx, y + dy);
+
+            if (target != null && target.getColor() == color) continue;
+            if (isAttacked(x + dx, y + dy, opponent)) continue;
+            if (isOnOpponentRayThrough(x, y, dx, dy, opponent)) continue;
+            ++moves;
+        }
+
+        return moves;
+    }
+
+    /**
+     * Gets the number of all possible moves and captures for every piece at once.
+     * The first time, pieces with simple movements are resolved against the grid,
+     * while sliding pieces take their first met pieces from the neighbours
+     * on sorted lines, so every line is swept only once.
+     * After that, only counts invalidated by changes of the board are evaluated
+     * @return counts in the order of addition of pieces
+     */
+
+    public BoardCounts computeAllCounts() {
+        final int piecesNumber = positionsToPieces.piecesNumber();
+
+        if (areAllCountsCached) {
+            for (int i = 0; i < piecesNumber; ++i) {
+                final ChessPiece piece = positionsToPieces.get(i);
+
+                if (piece != null) {
+                    getPiecePossibleMovesCount(piece);
+                    getPiecePossibleCapturesCount(piece);
+                }
+            }
+
+            return new BoardCounts(
+                    Arrays.copyOf(movesCache, piecesNumber),
+                    Arrays.copyOf(capturesCache, piecesNumber)
+            );
+        }
+
+        final int[] moves = new int[piecesNumber];
+        final int[] captures = new int[piecesNumber];
+
+        // Sliding pieces of the 8x8 board are counted with table lookups,
+        // so there is nothing to sweep
+
+        final boolean hasSlidingLookups = positionsToPieces.hasSlidingLookups();
+
+        for (int i = 0; i < piecesNumber; ++i) {
+            final ChessPiece piece = positionsToPieces.get(i);
+
+            if (piece instanceof SimpleChessPiece || hasSlidingLookups && piece != null) {
+                moves[i] = countMoves(piece);
+                captures[i] = countCaptures(piece);
+            } else if (Metrics.ENABLED && piece != null) {
+                Metrics.recordSwept(piece.getType());
+            }
+        }
+
+        final long sweepStart = Metrics.ENABLED ? System.nanoTime() : 0;
+
+        if (!hasSlidingLookups)
+            for (final LineFamily family : LineFamily.values())
+                sweepLines(family, moves, captures);
+
+        if (Metrics.ENABLED) Metrics.recordPhase(Metrics.Phase.SWEEP, System.nanoTime() - sweepStart);
+
+        System.arraycopy(moves, 0, movesCache, 0, piecesNumber);
+        System.arraycopy(captures, 0, capturesCache, 0, piecesNumber);
+        areAllCountsCached = true;
+
+        return new BoardCounts(moves, captures);
+    }
 
-            // Initializing array by Empty states (with distances to boundaries)
-
-            final MoveState[] firstMetPiecePositions = new MoveState[] {
-                    new MoveState.Empty(Math.min(boardSize - x, boardSize - y)),
-                    new MoveState.Empty(Math.min(boardSize - x, y - 1)),
-                    new MoveState.Empty(Math.min(x - 1, boardSize - y)),
-                    new MoveState.Empty(Math.min(x - 1, y - 1))
-            };
-
-            // Going through all pieces on board and pushing them to states array
-            // If the piece is closer to our piece than current piece in state
-            // (if there is any), updates the state and proceed.
-            // This way we will find the closest pieces for all diagonals,
-            // and then we can calculate both the number of possible moves and captures
-
-            positions.forEach((key, piece) -> {
-                final PiecePosition pos = piece.getPosition();
-                final int px = pos.getX();
-                final int py = pos.getY();
-
-                // Skip if it is the same piece
-                if (px == x && py == y)
-                    return;
-
-                // Checking if piece lies on any of our piece's diagonals
-                // In other words, can this piece be reached
-
-                if (Utils.notBelongsToLineEq(px, py, k1, b1) &&
-                        Utils.notBelongsToLineEq(px, py, k2, b2))
-                    return;
-
-                // To avoid duplicating, I've provided functions to update first met positions.
-                // There are too many dependencies and function should have too many arguments,
-                // that is why is makes sense to have an inside function.
-                // Unlike in Kotlin or JS/TS, it is not possible in Java to have a normal function
-                // inside the body of another function, so it is what it is.
-                // Also, this example shows why there is a keyword `var` in Java 10...
-
-                // Checks if first met positions should be updated
-                // In other words, is the distance smaller than the current distance
-                // @param ind - number of the diagonal (the list was provided above)
-                // @param onNonEmpty - is the distance is smaller than the previous one
-                // @param onNonEmpty 1 - x coordinate of the current state's position
-                // @return true if it should be updated
-
-                final Function2Args<Integer, Function<Integer, Boolean>, Boolean> shouldUpdateMetPositions = (ind, onNonEmpty) ->
-                        firstMetPiecePositions[ind] instanceof MoveState.Empty ||
-                                onNonEmpty.apply(((MoveState.NonEmpty) firstMetPiecePositions[ind]).position.getX());
-
-                // Updates first met position if it should be updated,
-                // in other words, is the distance smaller than the current distance
-                // @param ind - number of the diagonal (the list was provided above)
-                // @param onNonEmpty - is the distance is smaller than the previous one
-                // @param onNonEmpty 1 - x coordinate of the current state's position
-                // (the reason to use x instead of the position itself is that y - py == x - px)
-
-                final Function2Args<Integer, Function<Integer, Boolean>, Void> updateMetPiecePositionsIfOk = (ind, onNonEmpty) -> {
-                    if (shouldUpdateMetPositions.apply(ind, onNonEmpty)) {
-                        final PiecePosition piecePosition = new PiecePosition(px, py);
-                        firstMetPiecePositions[ind] = piece.getColor() == color ?
-                                new MoveState.NonEmpty.SameColor(piecePosition) :
-                                new MoveState.NonEmpty.DifferentColor(piecePosition);
-                    }
+    /**
+     * Gets the number of all possible moves and captures for every piece
+     * in parallel. Board must not be changed while counts are evaluated,
+     * so pieces are split into independent fork/join tasks
+     * that write to their own ranges of result arrays.
+     * Caches are filled only after all tasks are done
+     * @return counts in the order of addition of pieces
+     * @see CountsTask
+     */
 
-                    return null;
-                };
+    public BoardCounts computeAllCountsParallel() {
+        final int piecesNumber = positionsToPieces.piecesNumber();
+        final int[] moves = new int[piecesNumber];
+        final int[] captures = new int[piecesNumber];
 
-                if (px > x)
-                    updateMetPiecePositionsIfOk.apply(py > y ? 0 : 1, (curX) -> px < curX);
-                else
-                    updateMetPiecePositionsIfOk.apply(py > y ? 2 : 3, (curX) -> px > curX);
-            });
+        ForkJoinPool.commonPool().invoke(new CountsTask(0, piecesNumber, moves, captures));
 
-            return firstMetPiecePositions;
-        }
+        System.arraycopy(moves, 0, movesCache, 0, piecesNumber);
+        System.arraycopy(captures, 0, capturesCache, 0, piecesNumber);
+        areAllCountsCached = true;
+
+        return new BoardCounts(moves, captures);
     }
 
     /**
-     * Gets the number of all possible moves (including captures)
-     * @param position current piece's position
-     * @param color piece's color
-     * @param positions board
-     * @param boardSize number of rows / columns of the board
-     * @return the number of all possible moves
+     * Fork/join task that evaluates pieces in range [from..to).
+     * Splits the range in halves until it is not greater than {@link Board#PARALLEL_TASK_SIZE}
      */
 
-    default int getDiagonalMovesCount(
-            final PiecePosition position,
-            final PieceColor color,
-            final Map<String, ChessPiece> positions,
-            final int boardSize
-    ) {
-        final int x = position.getX();
+    private final class CountsTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
 
-        return getLongDistanceMovesCount(
-                position,
-                color,
-                positions,
-                boardSize,
-                firstMetPos -> Math.abs(x - firstMetPos.getX()),
-                Ext::getFirstMetPositions
-        );
+        private final int from;
+        private final int to;
+        private final int[] moves;
+        private final int[] captures;
+
+        CountsTask(final int from, final int to, final int[] moves, final int[] captures) {
+            this.from = from;
+            this.to = to;
+            this.moves = moves;
+            this.captures = captures;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= PARALLEL_TASK_SIZE) {
+                for (int i = from; i < to; ++i) {
+                    final ChessPiece piece = positionsToPieces.get(i);
+
+                    // Slots of removed pieces stay 0, caches are not touched by workers
+
+                    if (piece != null) {
+                        moves[i] = countMoves(piece);
+                        captures[i] = countCaptures(piece);
+                    }
+                }
+                return;
+            }
+
+            final int middle = (from + to) >>> 1;
+
+            invokeAll(
+                    new CountsTask(from, middle, moves, captures),
+                    new CountsTask(middle, to, moves, captures)
+            );
+        }
     }
 
     /**
-     * Gets the number of all possible captures
-     * @param position current piece's position
-     * @param color piece's color
-     * @param positions board
-     * @param boardSize number of rows / columns of the board
-     * @return the number of all possible captures
+     * Adds moves and captures along all lines of the family
+     * to every piece that slides along them.
+     * Neighbours on the sorted line are exactly
+     * the first met pieces in both directions
+     * @param family lines to sweep
+     * @param moves moves of pieces to update
+     * @param captures captures of pieces to update
      */
 
-    default int getDiagonalCapturesCount(
-            final PiecePosition position,
-            final PieceColor color,
-            final Map<String, ChessPiece> positions,
-            final int boardSize
-    ) {
-        return getLongDistanceCapturesCount(
-                position,
-                color,
-                positions,
-                boardSize,
-                Ext::getFirstMetPositions
-        );
-    }
-}
+    private void sweepLines(final LineFamily family, final int[] moves, final int[] captures) {
+        final LineIndex lines = positionsToPieces.lines(family);
 
-/** {@link LongDistanceMovement} with orthogonal moves */
+        for (int slot = 0; slot < lines.slotsNumber(); ++slot) {
+            final int line = lines.lineAt(slot);
+            final int count = lines.count(line);
 
-interface RookMovement extends LongDistanceMovement {
-    class Ext {
+            for (int order = 0; order < count; ++order) {
+                final int key = lines.get(line, order);
+                final int x = family.xOf(line, key, size);
+                final int y = family.yOf(line, key, size);
+                final int index = positionsToPieces.indexOf(x, y);
+                final ChessPiece piece = positionsToPieces.get(index);
 
-        /**
-         * Gets {@link MoveState}s for all orthogonal moves
-         * @param position current piece's position
-         * @param color piece's color
-         * @param positions board
-         * @param boardSize number of rows / columns of the board
-         * @return all {@link MoveState}s for 4 orthogonal moves
-         */
+                if (!family.isSlidingFor(piece))
+                    continue;
 
-        static MoveState[] getFirstMetPositions(
-                final PiecePosition position,
-                final PieceColor color,
-                final Map<String, ChessPiece> positions,
-                final int boardSize
-        ) {
-            final int x = position.getX();
-            final int y = position.getY();
+                // Piece before on the line or the border
 
-            // 0: x > (right)
-            // 1: x < (left)
-            // 2: y > (up)
-            // 3: y < (down)
+                if (order == 0) {
+                    moves[index] += family.distanceBefore(x, y, size);
+                } else {
+                    final int metKey = lines.get(line, order - 1);
+                    final ChessPiece met = positionsToPieces.get(
+                            family.xOf(line, metKey, size),
+                            family.yOf(line, metKey, size)
+                    );
 
-            // Initializing array by Empty states (with distances to boundaries)
-
-            final MoveState[] firstMetPiecePositions = new MoveState[] {
-                    new MoveState.Empty(boardSize - x),
-                    new MoveState.Empty(x - 1),
-                    new MoveState.Empty(boardSize - y),
-                    new MoveState.Empty(y - 1)
-            };
-
-            // Going through all pieces on board and pushing them to states array
-            // If the piece is closer to our piece than current piece in state
-            // (if there is any), updates the state and proceed.
-            // This way we will find the closest pieces for all orthogonal moves,
-            // and then we can calculate both the number of possible moves and captures
-
-            positions.forEach((key, piece) -> {
-                final PiecePosition pos = piece.getPosition();
-                final int px = pos.getX();
-                final int py = pos.getY();
-
-                // Skip if piece doesn't lie on any of orthogonal
-                if (px != x && py != y)
-                    return;
-
-                // Skip if it is the same piece
-                if (px == x && py == y)
-                    return;
-
-                // To avoid duplicating, I've provided functions to update first met positions.
-                // There are too many dependencies and function should have too many arguments,
-                // that is why is makes sense to have an inside function.
-                // Unlike in Kotlin or JS/TS, it is not possible in Java to have a normal function
-                // inside the body of another function, so it is what it is.
-                // Also, this example shows why there is a keyword `var` in Java 10...
-
-                // Checks if first met positions should be updated
-                // In other words, is the distance smaller than the current distance
-                // @param ind - number of the orthogonal move (the list was provided above)
-                // @param onNonEmpty - is the distance is smaller than the previous one
-                // @param onNonEmpty 1 - position of the current state's position
-                // @return true if it should be updated
-
-                final Function2Args<Integer, Function<PiecePosition, Boolean>, Boolean> shouldUpdateMetPositions = (ind, onNonEmpty) ->
-                        firstMetPiecePositions[ind] instanceof MoveState.Empty ||
-                                onNonEmpty.apply(((MoveState.NonEmpty) firstMetPiecePositions[ind]).position);
-
-                // Updates first met position if it should be updated,
-                // in other words, is the distance smaller than the current distance
-                // @param ind - number of the diagonal (the list was provided above)
-                // @param onNonEmpty - is the distance is smaller than the previous one
-                // @param onNonEmpty 1 - position of the current state's position
-
-                final Function2Args<Integer, Function<PiecePosition, Boolean>, Void> updateMetPiecePositionsIfOk = (ind, onNonEmpty) -> {
-                    if (shouldUpdateMetPositions.apply(ind, onNonEmpty)) {
-                        final PiecePosition piecePosition = new PiecePosition(px, py);
-                        firstMetPiecePositions[ind] = piece.getColor() == color ?
-                                new MoveState.NonEmpty.SameColor(piecePosition) :
-                                new MoveState.NonEmpty.DifferentColor(piecePosition);
-                    }
+                    final boolean isSameColor = met.getColor() == piece.getColor();
+                    moves[index] += key - metKey - (isSameColor ? 1 : 0);
+                    if (!isSameColor) ++captures[index];
+                }
 
-                    return null;
-                };
+                // Piece after on the line or the border
 
-                if (py == y) {
-                    if (px > x) // updates right
-                        updateMetPiecePositionsIfOk.apply(0, curPosition -> px < curPosition.getX());
-                    else        // updates left
-                        updateMetPiecePositionsIfOk.apply(1, curPosition -> px > curPosition.getX());
+                if (order == count - 1) {
+                    moves[index] += family.distanceAfter(x, y, size);
                 } else {
-                    if (py > y) // updates up
-                        updateMetPiecePositionsIfOk.apply(2, curPosition -> py < curPosition.getY());
-                    else        // updates down
-                        updateMetPiecePositionsIfOk.apply(3, curPosition -> py > curPosition.getY());
-                }
-            });
+                    final int metKey = lines.get(line, order + 1);
+                    final ChessPiece met = positionsToPieces.get(
+                            family.xOf(line, metKey, size),
+                            family.yOf(line, metKey, size)
+                    );
 
-            return firstMetPiecePositions;
+                    final boolean isSameColor = met.getColor() == piece.getColor();
+                    moves[index] += metKey - key - (isSameColor ? 1 : 0);
+                    if (!isSameColor) ++captures[index];
+                }
+            }
         }
     }
 
-    /**
-     * Gets the number of all possible moves (including captures)
-     * @param position current piece's position
-     * @param color piece's color
-     * @param positions board
-     * @param boardSize number of rows / columns of the board
-     * @return the number of all possible moves
-     */
+    /** Puts captured piece back into its slot */
 
-    default int getOrthogonalMovesCount(
-            final PiecePosition position,
-            final PieceColor color,
-            final Map<String, ChessPiece> positions,
-            final int boardSize
-    ) {
-        final int x = position.getX();
-        final int y = position.getY();
+    private void restorePiece(final ChessPiece piece, final int index) {
+        final PiecePosition position = piece.getPosition();
 
-        return getLongDistanceMovesCount(
-                position,
-                color,
-                positions,
-                boardSize,
-                firstMetPos -> Math.max(
-                        Math.abs(x - firstMetPos.getX()),
-                        Math.abs(y - firstMetPos.getY())
-                ),
-                Ext::getFirstMetPositions
-        );
+        positionsToPieces.put(piece, index);
+        invalidate(index);
+        invalidateAround(position.getX(), position.getY());
+        if (attacks != null) attacks.afterAdd(piece);
+        hash ^= zobristKey(piece);
     }
 
     /**
-     * Gets the number of all possible captures
-     * @param position current piece's position
-     * @param color piece's color
-     * @param positions board
-     * @param boardSize number of rows / columns of the board
-     * @return the number of all possible captures
+     * Checks if the cell is attacked without {@link AttackMap}:
+     * the closest pieces on all lines through the cell
+     * and pieces that jump to the cell are checked
      */
 
-    default int getOrthogonalCapturesCount(
-            final PiecePosition position,
-            final PieceColor color,
-            final Map<String, ChessPiece> positions,
-            final int boardSize
-    ) {
-        return getLongDistanceCapturesCount(
-                position,
-                color,
-                positions,
-                boardSize,
-                Ext::getFirstMetPositions
-        );
+    private boolean isAttackedDirectly(final int x, final int y, final PieceColor byColor) {
+        final int[] attackers = ATTACKERS.get();
+        final int attackersNumber = attackersOf(x, y, attackers);
+
+        for (int i = 0; i < attackersNumber; ++i)
+            if (positionsToPieces.get(attackers[i]).getColor() == byColor)
+                return true;
+
+        return false;
     }
-}
 
-/**
- * {@link Movement} with compile-time constant amount of positions to move
- * @see SimpleChessPiece
- */
+    /** Gets packed cell of the piece */
+
+    private long cellOf(final ChessPiece piece) {
+        final PiecePosition position = piece.getPosition();
+        return positionsToPieces.pack(position.getX(), position.getY());
+    }
 
-interface SimpleMovement extends Movement {
     /**
-     * Gets all positions that piece
-     * potentially can move (even if it's not possible)
-     * @return the maximum number of positions to move in
+     * Gets Zobrist key of the piece.
+     * Keys are derived from type, color and cell with {@link Board#mix(long)},
+     * so there is no need to store random keys for every cell of the large board
      */
 
-    PiecePosition[] getSimpleMovePositions();
+    private long zobristKey(final ChessPiece piece) { return mix(featureOf(piece) + 1); }
 
     /**
-     * Gets all potential positions to capture (even if it's not possible).
-     * By default, it is the same as {@link SimpleMovement#getSimpleMovePositions()}
-     * @return the maximum number of positions to capture
+     * Packs type, color and cell of the piece into one number.
+     * Features are ordered by cells, so they are sorted as the cells are
      */
 
-    default PiecePosition[] getSimpleCapturePositions() { return getSimpleMovePositions(); }
+    private long featureOf(final ChessPiece piece) {
+        return cellOf(piece) * PieceType.values().length * PieceColor.values().length +
+                piece.getType().ordinal() * PieceColor.values().length +
+                piece.getColor().ordinal();
+    }
 
-    /**
-     * Gets the number of all possible moves (including captures)
-     * @param color piece's color
-     * @param positions board
-     * @param boardSize number of rows / columns of the board
-     * @return the number of all possible moves
-     */
+    /** SplitMix64 finalizer, maps every value to the pseudo-random one */
 
-    default int getSimpleMovesCount(
-            final PieceColor color,
-            final Map<String, ChessPiece> positions,
-            final int boardSize
-    ) {
-        return Arrays.stream(getSimpleMovePositions())
-                .filter(position -> position.isValid(boardSize))
-                .map(position -> positions.get(position.toString()))
-                .map(piece -> piece == null ? 1 : (piece.getColor() == color ? 0 : 1))
-                .reduce(Integer::sum)
-                .orElse(0);
+    private static long mix(final long value) {
+        long z = value * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
     }
 
     /**
-     * Gets the number of all possible captures
-     * @param color piece's color
-     * @param positions board
-     * @return the number of all possible captures
+     * Gets index of the piece on the board
+     * @return index or -1 if piece is not on the board
      */
 
-    default int getSimpleCapturesCount(final PieceColor color, final Map<String, ChessPiece> positions) {
-        return Arrays.stream(getSimpleCapturePositions())
-                .map(position -> positions.get(position.toString()))
-                .map(piece -> piece == null ? 0 : (piece.getColor() == color ? 0 : 1))
-                .reduce(Integer::sum)
-                .orElse(0);
+    private int indexOf(final ChessPiece piece) {
+        final PiecePosition position = piece.getPosition();
+        final int index = positionsToPieces.indexOf(position.getX(), position.getY());
+        return index != -1 && positionsToPieces.get(index) == piece ? index : -1;
     }
 
-}
-
-/**
- * Ancestor for all chess pieces.
- * Should be sealed class, but there are none of them in Java 8...
- * BTW, this feature and many others are stolen from Kotlin :)
- */
+    /** Grows caches to cover all pieces' indices, new counts are not cached */
 
-abstract class ChessPiece implements Movement {
+    private void ensureCacheCapacity() {
+        final int piecesNumber = positionsToPieces.piecesNumber();
+        final int capacity = movesCache.length;
 
-    /** Current position */
-    protected final PiecePosition position;
+        if (piecesNumber <= capacity)
+            return;
 
-    /** Piece's color */
-    protected final PieceColor color;
+        final int newCapacity = Math.max(piecesNumber, capacity * 2);
+        movesCache = Arrays.copyOf(movesCache, newCapacity);
+        capturesCache = Arrays.copyOf(capturesCache, newCapacity);
+        Arrays.fill(movesCache, capacity, newCapacity, NOT_CACHED);
+        Arrays.fill(capturesCache, capacity, newCapacity, NOT_CACHED);
+    }
 
-    /**
-     * Constructs piece from given position and color.
-     * P.S. I don't care, it must be marked as protected.
-     * It is illegal to use this constructor outside the ancestors
-     */
+    /** Marks counts of the piece as not cached */
 
-    protected ChessPiece(final PiecePosition piecePosition, final PieceColor pieceColor) {
-        position = piecePosition;
-        color = pieceColor;
+    private void invalidate(final int index) {
+        movesCache[index] = NOT_CACHED;
+        capturesCache[index] = NOT_CACHED;
     }
 
     /**
-     * Constructs the {@link ChessPiece} from the given string
-     * @param name name of the piece to construct
-     * @param position position of the constructable piece
-     * @param color color of the constructable piece
-     * @throws InvalidPieceNameException if the name is not in set:
-     * {`Pawn`, `King`, `Knight`, `Rook`, `Queen`, `Bishop`}
+     * Invalidates counts of all pieces that can reach the changed cell:
+     * the closest sliding pieces on all lines through the cell
+     * and pieces that jump to the cell
+     * @param x column of the changed cell
+     * @param y row of the changed cell
      */
 
-    static ChessPiece parseOrThrow(
-            final String name,
-            final PiecePosition position,
-            final PieceColor color
-    ) throws InvalidPieceNameException {
-        if (name.equals("Pawn")) return new Pawn(position, color);
-        if (name.equals("King")) return new King(position, color);
-        if (name.equals("Knight")) return new Knight(position, color);
-        if (name.equals("Rook")) return new Rook(position, color);
-        if (name.equals("Queen")) return new Queen(position, color);
-        if (name.equals("Bishop")) return new Bishop(position, color);
-        throw new InvalidPieceNameException();
+    private void invalidateAround(final int x, final int y) {
+        for (final LineFamily family : LineFamily.values()) {
+            final LineIndex lines = positionsToPieces.lines(family);
+            final int line = positionsToPieces.lineOf(family, x, y);
+            final int key = family.keyOf(x, y);
+
+            invalidateSliding(family, line, lines.higher(line, key));
+            invalidateSliding(family, line, lines.lower(line, key));
+        }
+
+        for (final JumpTable table : JUMP_TABLES) {
+            for (int offset = 0; offset < table.size(); ++offset) {
+                final int index = positionsToPieces.indexOf(x - table.dx(offset), y - table.dy(offset));
+                if (index == -1) continue;
+
+                final ChessPiece piece = positionsToPieces.get(index);
+                if (!(piece instanceof SimpleMovement)) continue;
+
+                final SimpleMovement movement = (SimpleMovement) piece;
+
+                if (movement.getSimpleMoveTable() == table || movement.getSimpleCaptureTable() == table)
+                    invalidate(index);
+            }
+        }
     }
 
     /**
-     * Does exactly what it should do.
-     * BTW, completely useless cause it's final
+     * Checks if the cell in direction (dx, dy) from the given one
+     * is on the ray of the opponent's sliding piece that comes from the opposite side
      */
 
-    public final PiecePosition getPosition() { return position; }
+    private boolean isOnOpponentRayThrough(
+            final int x,
+            final int y,
+            final int dx,
+            final int dy,
+            final PieceColor opponent
+    ) {
+        for (final LineFamily family : LineFamily.values()) {
+            final int sign = family.dx == dx && family.dy == dy ? 1 :
+                    family.dx == -dx && family.dy == -dy ? -1 : 0;
 
-    /**
-     * Does exactly what it should do.
-     * BTW, completely useless cause it's final
-     */
+            if (sign == 0) continue;
 
-    public final PieceColor getColor() { return color; }
+            final int key = positionsToPieces.closestKey(family, x, y, -sign);
+            if (key == LineIndex.NONE) return false;
 
-    /**
-     * Gets the number of all possible moves (including captures)
-     * @param positions board
-     * @param boardSize number of rows / columns of the board
-     * @return the number of all possible moves
-     */
+            final int line = positionsToPieces.lineOf(family, x, y);
+            final ChessPiece piece = positionsToPieces.get(family.xOf(line, key, size), family.yOf(line, key, size));
+            return piece.getColor() == opponent && family.isSlidingFor(piece);
+        }
 
-    public abstract int getMovesCount(final Map<String, ChessPiece> positions, final int boardSize);
+        return false;
+    }
 
-    /**
-     * Gets the number of all possible captures
-     * @param positions board
-     * @param boardSize number of rows / columns of the board
-     * @return the number of all possible captures
-     */
+    /** Invalidates the piece on the line if it slides along it */
 
-    public abstract int getCapturesCount(final Map<String, ChessPiece> positions, final int boardSize);
+    private void invalidateSliding(final LineFamily family, final int line, final int key) {
+        if (key == LineIndex.NONE)
+            return;
+
+        final int index = positionsToPieces.indexOf(
+                family.xOf(line, key, size),
+                family.yOf(line, key, size)
+        );
+
+        if (family.isSlidingFor(positionsToPieces.get(index)))
+            invalidate(index);
+    }
 }
 
 /**
- * Ancestor for all chess pieces with
- * compile-time constant maximum number of moves
- * @see SimpleMovement
+ * Bounded cache of counts by Zobrist hashes of positions.
+ * Counts are stored by pieces' features (packed cells, types and colors),
+ * so the same position is recognized regardless of the order of pieces.
+ * The least recently used positions are evicted
+ * when the total number of cached pieces exceeds the limit.
+ * Table is thread-safe, so it can be shared by several boards
  */
 
-abstract class SimpleChessPiece extends ChessPiece implements SimpleMovement {
+final class TranspositionTable {
 
-    /** Constructs piece from given position and color */
+    /** Counts of one position sorted by pieces' features */
 
-    protected SimpleChessPiece(final PiecePosition piecePosition, final PieceColor pieceColor) {
-        super(piecePosition, pieceColor);
+    private static final class Entry {
+        final long[] features;
+        final int[] moves;
+        final int[] captures;
+
+        Entry(final long[] features, final int[] moves, final int[] captures) {
+            this.features = features;
+            this.moves = moves;
+            this.captures = captures;
+        }
     }
 
-    /**
-     * Gets the number of all possible moves (including captures)
-     * @param positions board
-     * @param boardSize number of rows / columns of the board
-     * @return the number of all possible moves
-     */
+    /** Maximum total number of pieces in all entries */
+    private final long maxPieces;
 
-    @Override
-    public int getMovesCount(final Map<String, ChessPiece> positions, final int boardSize) {
-        return getSimpleMovesCount(color, positions, boardSize);
-    }
+    /** Entries by hashes in the order of access */
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(16, 0.75F, true);
+
+    /** Total number of pieces in all entries */
+    private long cachedPieces = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    /** @param maxPieces maximum total number of pieces in all cached positions */
+
+    TranspositionTable(final long maxPieces) { this.maxPieces = maxPieces; }
 
     /**
-     * Gets the number of all possible captures
-     * @param positions board
-     * @return the number of all possible captures
+     * Gets counts of the position
+     * @param hash Zobrist hash of the position
+     * @param features packed features of pieces in the order of addition (-1 for removed pieces)
+     * @return counts in the same order or null if position is not cached
      */
 
-    @Override
-    public int getCapturesCount(final Map<String, ChessPiece> positions, final int boardSize) {
-        return getSimpleCapturesCount(color, positions);
-    }
-}
+    synchronized BoardCounts get(final long hash, final long[] features) {
+        final Entry entry = entries.get(hash);
 
-/** Knight, AKA Конь. Moves with Г trajectory */
+        if (entry == null || entry.features.length != piecesNumberOf(features)) {
+            ++misses;
+            return null;
+        }
 
-final class Knight extends SimpleChessPiece {
+        final int[] moves = new int[features.length];
+        final int[] captures = new int[features.length];
 
-    /** Constructs knight from the position and color */
-    public Knight(final PiecePosition piecePosition, final PieceColor pieceColor) { super(piecePosition, pieceColor); }
+        for (int i = 0; i < features.length; ++i) {
+            if (features[i] == -1) continue;
 
-    /**
-     * Gets all positions that piece
-     * potentially can move (even if it's not possible)
-     * @return the maximum number of positions to move in
-     */
+            final int found = Arrays.binarySearch(entry.features, features[i]);
 
-    @Override
-    public PiecePosition[] getSimpleMovePositions() {
-        final int x = position.getX();
-        final int y = position.getY();
+            // Collision of hashes, some piece is different
+            if (found < 0) {
+                ++misses;
+                return null;
+            }
 
-        final PiecePosition[] positionArr = new PiecePosition[8];
+            moves[i] = entry.moves[found];
+            captures[i] = entry.captures[found];
+        }
 
-        // -------------------------------------------- 1 --------------------------------------------
+        ++hits;
+        return new BoardCounts(moves, captures);
+    }
 
-        // . . . . .
-        // . . . . .
-        // . . K . .
-        // . . . . .
-        // . P . . .
+    /**
+     * Stores counts of the position, evicting the least recently used ones if needed
+     * @param hash Zobrist hash of the position
+     * @param features packed features of pieces in the order of addition (-1 for removed pieces)
+     * @param counts counts in the same order
+     */
 
-        positionArr[0] = new PiecePosition(x - 1, y - 2);
+    synchronized void put(final long hash, final long[] features, final BoardCounts counts) {
+        final long[] entryFeatures = new long[features.length];
+        int piecesNumber = 0;
 
-        // -------------------------------------------- 2 --------------------------------------------
+        for (final long feature : features)
+            if (feature != -1)
+                entryFeatures[piecesNumber++] = feature;
 
-        // . P . . .
-        // . . . . .
-        // . . K . .
-        // . . . . .
-        // . . . . .
+        if (piecesNumber > maxPieces)
+            return;
 
-        positionArr[1] = new PiecePosition(x - 1, y + 2);
+        // Cells of pieces are distinct, so the place of every piece
+        // in the sorted entry is found with binary search
 
-        // -------------------------------------------- 3 --------------------------------------------
+        final long[] sortedFeatures = Arrays.copyOf(entryFeatures, piecesNumber);
+        Arrays.sort(sortedFeatures);
 
-        // . . . . .
-        // . . . . .
-        // . . K . .
-        // P . . . .
-        // . . . . .
+        final int[] moves = new int[piecesNumber];
+        final int[] captures = new int[piecesNumber];
 
-        positionArr[2] = new PiecePosition(x - 2, y - 1);
+        for (int i = 0; i < features.length; ++i) {
+            if (features[i] == -1) continue;
 
-        // -------------------------------------------- 4 --------------------------------------------
+            final int place = Arrays.binarySearch(sortedFeatures, features[i]);
+            moves[place] = counts.moves[i];
+            captures[place] = counts.captures[i];
+        }
 
-        // . . . . .
-        // P . . . .
-        // . . K . .
-        // . . . . .
-        // . . . . .
+        final Entry previous = entries.put(hash, new Entry(sortedFeatures, moves, captures));
+        if (previous != null) cachedPieces -= previous.features.length;
+        cachedPieces += piecesNumber;
 
-        positionArr[3] = new PiecePosition(x - 2, y + 1);
+        final Iterator<Entry> eldest = entries.values().iterator();
 
-        // -------------------------------------------- 5 --------------------------------------------
+        while (cachedPieces > maxPieces) {
+            cachedPieces -= eldest.next().features.length;
+            eldest.remove();
+        }
+    }
 
-        // . . . . .
-        // . . . . .
-        // . . K . .
-        // . . . . .
-        // . . . P .
+    /** Number of pieces that are not removed */
 
-        positionArr[4] = new PiecePosition(x + 1, y - 2);
+    private static int piecesNumberOf(final long[] features) {
+        int piecesNumber = 0;
 
-        // -------------------------------------------- 6 --------------------------------------------
+        for (final long feature : features)
+            if (feature != -1)
+                ++piecesNumber;
 
-        // . . . P .
-        // . . . . .
-        // . . K . .
-        // . . . . .
-        // . . . . .
+        return piecesNumber;
+    }
 
-        positionArr[5] = new PiecePosition(x + 1, y + 2);
+    /** Number of positions that were served from the table */
 
-        // -------------------------------------------- 7 --------------------------------------------
+    synchronized long getHits() { return hits; }
 
-        // . . . . .
-        // . . . . .
-        // . . K . .
-        // . . . . P
-        // . . . . .
+    /** Number of positions that were not found in the table */
 
-        positionArr[6] = new PiecePosition(x + 2, y - 1);
+    synchronized long getMisses() { return misses; }
+}
 
-        // -------------------------------------------- 8 --------------------------------------------
+/**
+ * Moves and captures counts of all pieces on the board.
+ * Both arrays are in the order of addition of pieces
+ * @see Board#computeAllCounts()
+ */
 
-        // . . . . .
-        // . . . . P
-        // . . K . .
-        // . . . . .
-        // . . . . .
+final class BoardCounts {
 
-        positionArr[7] = new PiecePosition(x + 2, y + 1);
+    /** Numbers of all possible moves (including captures) */
+    final int[] moves;
 
-        // -------------------------------------------------------------------------------------------
+    /** Numbers of all possible captures */
+    final int[] captures;
 
-        return positionArr;
+    BoardCounts(final int[] moves, final int[] captures) {
+        this.moves = moves;
+        this.captures = captures;
     }
 }
 
-/** King, AKA Король. Moves on neighbor cells */
+/**
+ * Counts of all pieces stored as primitive columns: type, color, moves and captures,
+ * so side-wide aggregates are computed without re-reading the output.
+ * Aggregation loops are plain counted loops over arrays,
+ * so JIT unrolls them and vectorizes the ones without scatter
+ */
 
-final class King extends SimpleChessPiece {
+final class CountColumns {
 
-    /** Constructs the king from given position and color */
-    public King(final PiecePosition piecePosition, final PieceColor pieceColor) { super(piecePosition, pieceColor); }
+    /** Type of removed pieces' slots, they are excluded from all aggregates */
+    static final byte NO_PIECE = -1;
+
+    /** Types' ordinals of pieces or {@link CountColumns#NO_PIECE} */
+    final byte[] types;
+
+    /** Colors' ordinals of pieces */
+    final byte[] colors;
+
+    /** Numbers of all possible moves (including captures) */
+    final int[] moves;
+
+    /** Numbers of all possible captures */
+    final int[] captures;
+
+    private CountColumns(final byte[] types, final byte[] colors, final int[] moves, final int[] captures) {
+        this.types = types;
+        this.colors = colors;
+        this.moves = moves;
+        this.captures = captures;
+    }
 
     /**
-     * Gets all positions that piece
-     * potentially can move (even if it's not possible)
-     * @return the maximum number of positions to move in
+     * Builds columns from the board and its counts
+     * @param board evaluated board
+     * @param counts counts of the board in the order of addition
      */
 
-    @Override
-    public PiecePosition[] getSimpleMovePositions() {
-        final int x = getPosition().getX();
-        final int y = getPosition().getY();
-
-        return new PiecePosition[] {
-                new PiecePosition(x - 1, y - 1),
-                new PiecePosition(x - 1, y),
-                new PiecePosition(x - 1, y + 1),
-                new PiecePosition(x, y - 1),
-                new PiecePosition(x, y + 1),
-                new PiecePosition(x + 1, y - 1),
-                new PiecePosition(x + 1, y),
-                new PiecePosition(x + 1, y + 1)
-        };
+    static CountColumns of(final Board board, final BoardCounts counts) {
+        final int piecesNumber = counts.moves.length;
+        final byte[] types = new byte[piecesNumber];
+        final byte[] colors = new byte[piecesNumber];
+
+        for (int i = 0; i < piecesNumber; ++i) {
+            final ChessPiece piece = board.getPiece(i);
+            types[i] = piece == null ? NO_PIECE : (byte) piece.getType().ordinal();
+            colors[i] = piece == null ? 0 : (byte) piece.getColor().ordinal();
+        }
+
+        return new CountColumns(types, colors, counts.moves, counts.captures);
     }
-}
 
-/** Pawn, AKA Пешка. Moves on the cell in front of her, captures 2 cell on diagonals */
+    /** Total number of moves (including captures) of all pieces with given color */
 
-final class Pawn extends SimpleChessPiece {
+    long totalMoves(final PieceColor color) { return sumOf(moves, color); }
 
-    /** Constructs the pawn from given position and color */
-    public Pawn(final PiecePosition piecePosition, final PieceColor pieceColor) { super(piecePosition, pieceColor); }
+    /** Total number of captures of all pieces with given color */
+
+    long totalCaptures(final PieceColor color) { return sumOf(captures, color); }
 
     /**
-     * Gets all positions that piece
-     * potentially can move (even if it's not possible)
-     * @return the maximum number of positions to move in
+     * Total numbers of moves (including captures) by types
+     * @return totals by {@link PieceType} ordinals
      */
 
-    @Override
-    public PiecePosition[] getSimpleMovePositions() {
-        final int x = position.getX();
-        final int y = position.getY();
-        return new PiecePosition[] { new PiecePosition(x, y + (color == PieceColor.WHITE ? 1 : -1)) };
-    }
+    long[] movesByType() { return sumByType(moves); }
 
     /**
-     * Gets all potential positions to capture (even if it's not possible).
-     * @return the maximum number of positions to capture
+     * Total numbers of captures by types
+     * @return totals by {@link PieceType} ordinals
      */
 
-    @Override
-    public PiecePosition[] getSimpleCapturePositions() {
-        final int x = position.getX();
-        final int y = position.getY();
-
-        return color == PieceColor.WHITE ? new PiecePosition[] {
-                new PiecePosition(x - 1, y + 1),
-                new PiecePosition(x + 1, y + 1)
-        } : new PiecePosition[] {
-                new PiecePosition(x - 1, y - 1),
-                new PiecePosition(x + 1, y - 1)
-        };
-    }
+    long[] capturesByType() { return sumByType(captures); }
 
     /**
-     * Gets the number of all possible moves (including captures)
-     * @param color piece's color
-     * @param positions board
-     * @param boardSize number of rows / columns of the board
-     * @return the number of all possible moves
+     * Finds the piece with the maximum number of captures,
+     * the first one in the order of addition on ties
+     * @return index of the piece or -1 if there are no pieces
      */
 
-    @Override
-    public int getSimpleMovesCount(
-            final PieceColor color,
-            final Map<String, ChessPiece> positions,
-            final int boardSize
-    ) {
-        final PiecePosition movePosition = getSimpleMovePositions()[0];
-        if (!movePosition.isValid(boardSize)) return 0;
-        return positions.get(getSimpleMovePositions()[0].toString()) == null ? 1 : 0;
+    int mostCapturing() {
+        int best = -1;
+        int bestCaptures = -1;
+
+        for (int i = 0; i < captures.length; ++i) {
+            if (types[i] != NO_PIECE && captures[i] > bestCaptures) {
+                best = i;
+                bestCaptures = captures[i];
+            }
+        }
+
+        return best;
     }
 
     /**
-     * Gets the number of all possible moves (including captures)
-     * @param positions board
-     * @param boardSize number of rows / columns of the board
-     * @return the number of all possible moves
+     * Builds the summary of the board
+     * @return JSON object with totals by colors and types and the most capturing piece
      */
 
-    @Override
-    public int getMovesCount(final Map<String, ChessPiece> positions, final int boardSize) {
-        return getSimpleMovesCount(color, positions, boardSize) + getSimpleCapturesCount(color, positions);
-    }
-}
+    String toJson() {
+        final StringBuilder json = new StringBuilder("{\"colors\":{");
 
-/** Bishop, AKA Слон. Moves diagonally on any number of cells */
+        for (final PieceColor color : PieceColor.values()) {
+            if (color.ordinal() > 0) json.append(',');
 
-final class Bishop extends ChessPiece implements BishopMovement {
+            json.append('"').append(color.title).append("\":{")
+                    .append("\"moves\":").append(totalMoves(color))
+                    .append(",\"captures\":").append(totalCaptures(color))
+                    .append('}');
+        }
 
-    /** Constructs the bishop from given position and color */
-    public Bishop(final PiecePosition piecePosition, final PieceColor pieceColor) { super(piecePosition, pieceColor); }
+        json.append("},\"types\":{");
 
-    /**
-     * Gets the number of all possible moves (including captures)
-     * @param positions board
-     * @param boardSize number of rows / columns of the board
-     * @return the number of all possible moves
-     */
+        final long[] typeMoves = movesByType();
+        final long[] typeCaptures = capturesByType();
 
-    @Override
-    public int getMovesCount(final Map<String, ChessPiece> positions, final int boardSize) {
-        return getDiagonalMovesCount(position, color, positions, boardSize);
+        for (final PieceType type : PieceType.values()) {
+            if (type.ordinal() > 0) json.append(',');
+
+            json.append('"').append(type.title).append("\":{")
+                    .append("\"moves\":").append(typeMoves[type.ordinal()])
+                    .append(",\"captures\":").append(typeCaptures[type.ordinal()])
+                    .append('}');
+        }
+
+        json.append("},\"mostCapturing\":");
+
+        final int best = mostCapturing();
+
+        if (best == -1) {
+            json.append("null");
+        } else {
+            json.append("{\"index\":").append(best)
+                    .append(",\"type\":\"").append(PieceType.values()[types[best]].title)
+                    .append("\",\"color\":\"").append(PieceColor.values()[colors[best]].title)
+                    .append("\",\"captures\":").append(captures[best])
+                    .append('}');
+        }
+
+        return json.append('}').toString();
     }
 
     /**
-     * Gets the number of all possible captures
-     * @param positions board
-     * @param boardSize number of rows / columns of the board
-     * @return the number of all possible captures
+     * Sums values of pieces with given color.
+     * Selection is branch-free: mask is all ones for matching pieces and zero otherwise
      */
 
-    @Override
-    public int getCapturesCount(final Map<String, ChessPiece> positions, final int boardSize) {
-        return getDiagonalCapturesCount(position, color, positions, boardSize);
+    private long sumOf(final int[] values, final PieceColor color) {
+        final int colorOrdinal = color.ordinal();
+        long sum = 0;
+
+        for (int i = 0; i < values.length; ++i) {
+            final int isPiece = (types[i] >>> 31) ^ 1;
+            final int isColor = ((colors[i] ^ colorOrdinal) - 1) >>> 31;
+            sum += values[i] & -(isPiece & isColor);
+        }
+
+        return sum;
+    }
+
+    /** Sums values of all pieces by their types in one pass */
+
+    private long[] sumByType(final int[] values) {
+        final long[] sums = new long[PieceType.values().length];
+
+        for (int i = 0; i < values.length; ++i)
+            if (types[i] != NO_PIECE)
+                sums[types[i]] += values[i];
+
+        return sums;
     }
 }
 
-/** Rook, AKA Ладья. Moves orthogonally on any number of cells */
+/**
+ * Counts leaf nodes of the legal moves' tree.
+ * Root moves are split across the fork/join pool,
+ * every task walks its subtree on its own copy of the board
+ */
 
-final class Rook extends ChessPiece implements RookMovement {
+final class Perft {
 
-    /** Constructs the rook from given position and color */
-    public Rook(final PiecePosition piecePosition, final PieceColor pieceColor) { super(piecePosition, pieceColor); }
+    /** Result of the run with its throughput */
 
-    /**
-     * Gets the number of all possible moves (including captures)
-     * @param positions board
-     * @param boardSize number of rows / columns of the board
-     * @return the number of all possible moves
-     */
+    static final class Result {
 
-    @Override
-    public int getMovesCount(final Map<String, ChessPiece> positions, final int boardSize) {
-        return getOrthogonalMovesCount(position, color, positions, boardSize);
+        /** Number of leaf nodes */
+        final long nodes;
+
+        /** Time of the run in nanoseconds */
+        final long nanos;
+
+        Result(final long nodes, final long nanos) {
+            this.nodes = nodes;
+            this.nanos = nanos;
+        }
+
+        /** Nodes per second */
+
+        long getNodesPerSecond() { return nanos == 0 ? 0 : nodes * 1_000_000_000L / nanos; }
     }
 
+    private Perft() {}
+
     /**
-     * Gets the number of all possible captures
-     * @param positions board
-     * @param boardSize number of rows / columns of the board
-     * @return the number of all possible captures
+     * Counts leaf nodes in parallel and measures the time
+     * @param board position to start from, it is not changed
+     * @param side color of pieces to move first
+     * @param depth number of half-moves
+     * @throws InvalidPiecePositionException if generated move can't be made
      */
 
-    @Override
-    public int getCapturesCount(final Map<String, ChessPiece> positions, final int boardSize) {
-        return getOrthogonalCapturesCount(position, color, positions, boardSize);
-    }
-}
+    static Result run(final Board board, final PieceColor side, final int depth) throws InvalidPiecePositionException {
+        final long start = System.nanoTime();
 
-/** Queen, AKA Королева. Moves as all pieces altogether */
+        if (depth == 0)
+            return new Result(1, System.nanoTime() - start);
 
-final class Queen extends ChessPiece implements BishopMovement, RookMovement {
+        final MoveList rootMoves = new MoveList();
+        board.generateLegalMoves(side, rootMoves);
 
-    /** Constructs the rook from given position and color */
-    public Queen(final PiecePosition piecePosition, final PieceColor pieceColor) { super(piecePosition, pieceColor); }
+        final long nodes = depth == 1 ?
+                rootMoves.size() :
+                ForkJoinPool.commonPool().invoke(new PerftTask(board, rootMoves, 0, rootMoves.size(), opponentOf(side), depth - 1));
+
+        return new Result(nodes, System.nanoTime() - start);
+    }
 
     /**
-     * Gets the number of all possible moves (including captures)
-     * @param positions board
-     * @param boardSize number of rows / columns of the board
-     * @return the number of all possible moves
+     * Counts leaf nodes on the calling thread
+     * @param board position to start from, it is restored after the call
+     * @param side color of pieces to move first
+     * @param depth number of half-moves
+     * @param buffers move buffers for every remaining depth (at least `depth` long)
+     * @throws InvalidPiecePositionException if generated move can't be made
      */
 
-    @Override
-    public int getMovesCount(final Map<String, ChessPiece> positions, final int boardSize) {
-        final int diagonal = getDiagonalMovesCount(position, color, positions, boardSize);
-        final int orthogonal = getOrthogonalMovesCount(position, color, positions, boardSize);
-        return diagonal + orthogonal;
+    static long count(
+            final Board board,
+            final PieceColor side,
+            final int depth,
+            final MoveList[] buffers
+    ) throws InvalidPiecePositionException {
+        if (depth == 0)
+            return 1;
+
+        final MoveList moves = buffers[depth - 1];
+        moves.clear();
+        board.generateLegalMoves(side, moves);
+
+        // Leaves are not made, their number is known right after the generation
+
+        if (depth == 1)
+            return moves.size();
+
+        final PieceColor opponent = opponentOf(side);
+        long nodes = 0;
+
+        for (int i = 0; i < moves.size(); ++i) {
+            final long move = moves.get(i);
+            board.makeMove(move);
+            nodes += count(board, opponent, depth - 1, buffers);
+            board.unmakeMove(move);
+        }
+
+        return nodes;
+    }
+
+    /** Makes move buffers for every depth */
+
+    static MoveList[] newBuffers(final int depth) {
+        final MoveList[] buffers = new MoveList[depth];
+        for (int i = 0; i < depth; ++i) buffers[i] = new MoveList();
+        return buffers;
+    }
+
+    private static PieceColor opponentOf(final PieceColor color) {
+        return color == PieceColor.WHITE ? PieceColor.BLACK : PieceColor.WHITE;
     }
 
     /**
-     * Gets the number of all possible captures
-     * @param positions board
-     * @param boardSize number of rows / columns of the board
-     * @return the number of all possible captures
+     * Fork/join task that counts subtrees of root moves in range [from..to).
+     * Splits the range in halves until there is only one move
      */
 
-    @Override
-    public int getCapturesCount(Map<String, ChessPiece> positions, int boardSize) {
-        final int diagonal = getDiagonalCapturesCount(position, color, positions, boardSize);
-        final int orthogonal = getOrthogonalCapturesCount(position, color, positions, boardSize);
-        return diagonal + orthogonal;
-    }
-}
+    private static final class PerftTask extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+
+        private final Board board;
+        private final MoveList rootMoves;
+        private final int from;
+        private final int to;
+        private final PieceColor side;
+        private final int depth;
+
+        PerftTask(
+                final Board board,
+                final MoveList rootMoves,
+                final int from,
+                final int to,
+                final PieceColor side,
+                final int depth
+        ) {
+            this.board = board;
+            this.rootMoves = rootMoves;
+            this.from = from;
+            this.to = to;
+            this.side = side;
+            this.depth = depth;
+        }
 
-/** Ancestor for all chess-related exception */
+        @Override
+        protected Long compute() {
+            if (to - from == 1) {
+                try {
+                    final Board copy = board.copy();
+                    copy.makeMove(rootMoves.get(from));
+                    return count(copy, side, depth, newBuffers(depth));
+                } catch (final InvalidPiecePositionException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
 
-abstract class ChessException extends Exception {}
+            if (to == from)
+                return 0L;
 
-/** Threw if board size is not in [3..1000] */
+            final int middle = (from + to) >>> 1;
+            final PerftTask right = new PerftTask(board, rootMoves, middle, to, side, depth);
+            right.fork();
 
-final class InvalidBoardSizeException extends ChessException {
-    @Override
-    public String getMessage() { return "Invalid board size"; }
+            final long left = new PerftTask(board, rootMoves, from, middle, side, depth).compute();
+            return left + right.join();
+        }
+    }
 }
 
-/** Threw if number of pieces is not in [2..boardArea] */
+/**
+ * Opt-in metrics of the counting engine:
+ * calls, cumulative time and latency histograms of counts by pieces' types
+ * and timings of the phases of every board.
+ * Sliding pieces that are counted by the sweep of lines are not timed one by one,
+ * their numbers are reported as `swept` by types, while the time is in the `sweep` phase.
+ * Enabled with `-Dchess.metrics=true`, the summary is dumped at exit as JSON
+ * to the file from `-Dchess.metrics.file` (or to the standard error).
+ * Flag is a compile-time constant for JIT, so disabled checks are removed
+ * from the hot paths altogether
+ */
 
-final class InvalidNumberOfPiecesException extends ChessException {
-    @Override
-    public String getMessage() { return "Invalid number of pieces"; }
-}
+final class Metrics {
 
-/** Threw if the name is not in set {`Pawn`, `King`, `Knight`, `Rook`, `Queen`, `Bishop`} */
+    /** Whether metrics are collected */
+    static final boolean ENABLED = Boolean.getBoolean("chess.metrics");
 
-final class InvalidPieceNameException extends ChessException {
-    @Override
-    public String getMessage() { return "Invalid piece name"; }
-}
+    /** Kinds of timed counts */
+    enum Count { MOVES, CAPTURES }
 
-/** Threw if the color is neither `Black`, not `White` */
+    /** Timed phases of the board's evaluation */
+    enum Phase { PARSE, EVALUATE, SWEEP, WRITE }
 
-final class InvalidPieceColorException extends ChessException {
-    @Override
-    public String getMessage() { return "Invalid piece color"; }
-}
+    /**
+     * Number of latency buckets. Bucket i holds durations
+     * in [2^(i-1)..2^i) nanoseconds (bucket 0 is for 0 ns)
+     */
 
-/** Threw if the position is invalid or occupied by another cell */
+    private static final int BUCKETS = 64;
 
-final class InvalidPiecePositionException extends ChessException {
-    @Override
-    public String getMessage() { return "Invalid piece position"; }
-}
+    private static final int TYPES = PieceType.values().length;
+    private static final int COUNTS = Count.values().length;
 
-/** Threw if there are not exactly two kings: black and white */
+    /** Calls by (type, count) */
+    private static final AtomicLongArray CALLS = new AtomicLongArray(TYPES * COUNTS);
 
-final class InvalidGivenKingsException extends ChessException {
-    @Override
-    public String getMessage() { return "Invalid given Kings"; }
-}
+    /** Cumulative nanoseconds by (type, count) */
+    private static final AtomicLongArray NANOS = new AtomicLongArray(TYPES * COUNTS);
 
-/** Threw if there are some IO error */
+    /** Latency histograms by (type, count, bucket) */
+    private static final AtomicLongArray HISTOGRAMS = new AtomicLongArray(TYPES * COUNTS * BUCKETS);
 
-final class InvalidInputException extends ChessException {
-    @Override
-    public String getMessage() { return "Invalid input"; }
-}
+    /** Pieces counted by the sweep of lines by types */
+    private static final AtomicLongArray SWEPT = new AtomicLongArray(TYPES);
 
-/**
- * Chess Board itself.
- * BTW, it is better to mark it as singleton
- * and use a dependency injection framework
- */
+    /** Calls by phases */
+    private static final AtomicLongArray PHASE_CALLS = new AtomicLongArray(Phase.values().length);
 
-final class Board {
-    static final int MIN_LENGTH = 3;
-    static final int MAX_LENGTH = 1000;
+    /** Cumulative nanoseconds by phases */
+    private static final AtomicLongArray PHASE_NANOS = new AtomicLongArray(Phase.values().length);
 
-    /** Stores all pieces by their positions */
+    static {
+        if (ENABLED)
+            Runtime.getRuntime().addShutdownHook(new Thread(Metrics::dump));
+    }
 
-    private final Map<String, ChessPiece> positionsToPieces = new HashMap<>();
+    private Metrics() {}
 
-    /** Number of rows (columns) of the board */
+    /** Records one count of the piece's type that took given time */
 
-    private final int size;
+    static void recordCount(final PieceType type, final Count count, final long nanos) {
+        final int counter = type.ordinal() * COUNTS + count.ordinal();
+        CALLS.incrementAndGet(counter);
+        NANOS.addAndGet(counter, nanos);
+        HISTOGRAMS.incrementAndGet(counter * BUCKETS + bucketOf(nanos));
+    }
 
-    /** Constructs board by the number of rows (columns) */
+    /** Records one piece of the type that was counted by the sweep of lines */
 
-    public Board(final int boardSize) { size = boardSize; }
+    static void recordSwept(final PieceType type) { SWEPT.incrementAndGet(type.ordinal()); }
 
-    /**
-     * Gets the number of all possible moves (including captures)
-     * @param piece piece to get the number of moves
-     * @return the number of all possible moves for the piece
-     */
+    /** Records one phase that took given time */
 
-    public int getPiecePossibleMovesCount(final ChessPiece piece) {
-        return piece.getMovesCount(positionsToPieces, size);
+    static void recordPhase(final Phase phase, final long nanos) {
+        PHASE_CALLS.incrementAndGet(phase.ordinal());
+        PHASE_NANOS.addAndGet(phase.ordinal(), nanos);
     }
 
     /**
-     * Gets the number of all possible captures
-     * @param piece piece to get the number of captures
-     * @return the number of all possible captures
+     * Builds the summary. Histograms are trimmed after the last non-empty bucket
+     * @return JSON object with `counts` (including `swept` pieces) by types and `phases`
      */
 
-    public int getPiecePossibleCapturesCount(final ChessPiece piece) {
-        return piece.getCapturesCount(positionsToPieces, size);
-    }
+    static String toJson() {
+        final StringBuilder json = new StringBuilder("{\"counts\":{");
 
-    /**
-     * Adds piece to the board.
-     * @param piece piece to add
-     * @throws InvalidPiecePositionException
-     * if the position is already assigned to another piece
-     */
+        for (final PieceType type : PieceType.values()) {
+            if (type.ordinal() > 0) json.append(',');
+            json.append('"').append(type.title).append("\":{");
 
-    public void addPiece(final ChessPiece piece) throws InvalidPiecePositionException {
-        final PiecePosition position = piece.getPosition();
+            for (final Count count : Count.values()) {
+                final int counter = type.ordinal() * COUNTS + count.ordinal();
+                if (count.ordinal() > 0) json.append(',');
 
-        if (getPiece(position) != null)
-            throw new InvalidPiecePositionException();
+                json.append('"').append(count.name().toLowerCase()).append("\":{")
+                        .append("\"calls\":").append(CALLS.get(counter))
+                        .append(",\"nanos\":").append(NANOS.get(counter))
+                        .append(",\"histogram\":[");
+
+                int last = BUCKETS - 1;
+                while (last >= 0 && HISTOGRAMS.get(counter * BUCKETS + last) == 0) --last;
+
+                for (int bucket = 0; bucket <= last; ++bucket) {
+                    if (bucket > 0) json.append(',');
+                    json.append(HISTOGRAMS.get(counter * BUCKETS + bucket));
+                }
+
+                json.append("]}");
+            }
+
+            json.append(",\"swept\":{\"pieces\":").append(SWEPT.get(type.ordinal())).append("}}");
+        }
+
+        json.append("},\"phases\":{");
 
-        positionsToPieces.put(position.toString(), piece);
+        for (final Phase phase : Phase.values()) {
+            if (phase.ordinal() > 0) json.append(',');
+
+            json.append('"').append(phase.name().toLowerCase()).append("\":{")
+                    .append("\"calls\":").append(PHASE_CALLS.get(phase.ordinal()))
+                    .append(",\"nanos\":").append(PHASE_NANOS.get(phase.ordinal()))
+                    .append('}');
+        }
+
+        return json.append("}}").toString();
     }
 
-    /** Gets piece by its position */
+    /** Bucket of the duration: the number of significant bits */
 
-    public ChessPiece getPiece(final PiecePosition position) {
-        return positionsToPieces.get(position.toString());
+    private static int bucketOf(final long nanos) {
+        return nanos <= 0 ? 0 : BUCKETS - Long.numberOfLeadingZeros(nanos);
+    }
+
+    /** Writes the summary to the file or to the standard error */
+
+    private static void dump() {
+        final String path = System.getProperty("chess.metrics.file");
+
+        if (path == null) {
+            System.err.println(toJson());
+            return;
+        }
+
+        try (final PrintWriter writer = new PrintWriter(new FileWriter(path))) {
+            writer.println(toJson());
+        } catch (final IOException e) {
+            System.err.println(toJson());
+        }
     }
 }